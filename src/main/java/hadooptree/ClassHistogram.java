@@ -0,0 +1,191 @@
+package hadooptree;
+
+import hadooptree.io.HistogramWritable;
+import java.util.Arrays;
+
+/**
+ * Dense objective class counts for the bins of one field, stored bin-major in
+ * a flat array.  Bins are numeric buckets (or distinct values) in ascending
+ * order, or category ids.  A histogram is meant to be reset and reused for
+ * every field a task evaluates, so finding the best split does not allocate.
+ */
+public class ClassHistogram {
+
+  private int binCount;
+  private int classCount;
+  private long[] counts;
+  private long[] totals;
+  private long[] trueCounts;
+  private long[] falseCounts;
+  private long[] bestTrueCounts;
+  private long[] bestFalseCounts;
+  private int bestBin;
+  private double bestInformationGain;
+
+  public ClassHistogram() {
+    counts = new long[0];
+    reset(0, 0);
+  }
+
+  public final void reset(int binCount, int classCount) {
+    this.binCount = binCount;
+    this.classCount = classCount;
+
+    int size = binCount * classCount;
+    if (counts.length < size) {
+      counts = new long[size];
+    } else {
+      Arrays.fill(counts, 0, size, 0l);
+    }
+
+    if (totals == null || totals.length != classCount) {
+      totals = new long[classCount];
+      trueCounts = new long[classCount];
+      falseCounts = new long[classCount];
+      bestTrueCounts = new long[classCount];
+      bestFalseCounts = new long[classCount];
+    } else {
+      Arrays.fill(totals, 0l);
+    }
+    bestBin = -1;
+    bestInformationGain = -Double.MAX_VALUE;
+  }
+
+  public int getBinCount() {
+    return binCount;
+  }
+
+  public int getClassCount() {
+    return classCount;
+  }
+
+  public void add(int bin, int classId, long count) {
+    counts[bin * classCount + classId] += count;
+    totals[classId] += count;
+  }
+
+  public void add(HistogramWritable histogram) {
+    for (int entry = 0; entry < histogram.getSize(); entry++) {
+      int offset = histogram.getBin(entry) * classCount;
+      for (int classId = 0; classId < classCount; classId++) {
+        long count = histogram.getCount(entry, classId);
+        counts[offset + classId] += count;
+        totals[classId] += count;
+      }
+    }
+  }
+
+  /**
+   * Copies the non-empty bins into a (sparse) Writable histogram.
+   */
+  public void write(HistogramWritable histogram) {
+    histogram.clear(classCount);
+    for (int bin = 0; bin < binCount; bin++) {
+      if (!isEmpty(bin)) {
+        histogram.add(bin, counts, bin * classCount);
+      }
+    }
+  }
+
+  public boolean isEmpty(int bin) {
+    int offset = bin * classCount;
+    for (int classId = 0; classId < classCount; classId++) {
+      if (counts[offset + classId] != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The number of bins holding any instances.
+   */
+  public int getOccupiedBinCount() {
+    int occupiedBins = 0;
+    for (int bin = 0; bin < binCount; bin++) {
+      if (!isEmpty(bin)) {
+        occupiedBins++;
+      }
+    }
+    return occupiedBins;
+  }
+
+  public long getCount(int bin, int classId) {
+    return counts[bin * classCount + classId];
+  }
+
+  public long[] getTotals() {
+    return totals;
+  }
+
+  /**
+   * Evaluates splitting after every bin, with the bins up to and including
+   * the candidate on the true side.  Returns whether a split leaves more than
+   * splitFloor instances on both sides.
+   */
+  public boolean findBestNumericSplit(int splitFloor) {
+    bestBin = -1;
+    bestInformationGain = -Double.MAX_VALUE;
+    Arrays.fill(trueCounts, 0l);
+
+    for (int bin = 0; bin < binCount; bin++) {
+      int offset = bin * classCount;
+      for (int classId = 0; classId < classCount; classId++) {
+        trueCounts[classId] += counts[offset + classId];
+        falseCounts[classId] = totals[classId] - trueCounts[classId];
+      }
+      evaluateCandidate(bin, splitFloor);
+    }
+
+    return bestBin >= 0;
+  }
+
+  /**
+   * Evaluates splitting every bin from all the others, with the bin on the
+   * true side.
+   */
+  public boolean findBestCategoricalSplit(int splitFloor) {
+    bestBin = -1;
+    bestInformationGain = -Double.MAX_VALUE;
+
+    for (int bin = 0; bin < binCount; bin++) {
+      int offset = bin * classCount;
+      for (int classId = 0; classId < classCount; classId++) {
+        trueCounts[classId] = counts[offset + classId];
+        falseCounts[classId] = totals[classId] - trueCounts[classId];
+      }
+      evaluateCandidate(bin, splitFloor);
+    }
+
+    return bestBin >= 0;
+  }
+
+  private void evaluateCandidate(int bin, int splitFloor) {
+    double informationGain = Utils.findInformationGain(totals, trueCounts, falseCounts);
+
+    if (informationGain > bestInformationGain
+            && Utils.sumCounts(trueCounts) > splitFloor
+            && Utils.sumCounts(falseCounts) > splitFloor) {
+      bestInformationGain = informationGain;
+      bestBin = bin;
+      System.arraycopy(trueCounts, 0, bestTrueCounts, 0, classCount);
+      System.arraycopy(falseCounts, 0, bestFalseCounts, 0, classCount);
+    }
+  }
+
+  public int getBestBin() {
+    return bestBin;
+  }
+
+  public double getBestInformationGain() {
+    return bestInformationGain;
+  }
+
+  public long[] getBestTrueCounts() {
+    return bestTrueCounts;
+  }
+
+  public long[] getBestFalseCounts() {
+    return bestFalseCounts;
+  }
+}
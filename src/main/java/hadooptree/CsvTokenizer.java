@@ -0,0 +1,257 @@
+package hadooptree;
+
+import java.nio.charset.Charset;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Walks the comma separated tokens of a line in place, over the line's UTF-8
+ * bytes, so a record can be read without splitting it into strings.  Tokens
+ * are trimmed like String.trim().  Numbers are recognized without throwing
+ * exceptions, and the common short decimals are parsed directly; anything
+ * else that might be a Java floating point literal is handed to
+ * Double.parseDouble so both agree on every token.
+ */
+public class CsvTokenizer {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int MAX_FAST_DIGITS = 15;
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  private byte[] bytes;
+  private int end;
+  private int position;
+  private int tokenStart;
+  private int tokenEnd;
+  private boolean isParsed;
+  private boolean isNumber;
+  private double number;
+
+  public CsvTokenizer() {
+    reset(new byte[0], 0, 0);
+  }
+
+  public void reset(Text text) {
+    reset(text.getBytes(), 0, text.getLength());
+  }
+
+  public void reset(byte[] bytes, int start, int length) {
+    this.bytes = bytes;
+    this.end = start + length;
+    this.position = start;
+    this.tokenStart = start;
+    this.tokenEnd = start;
+    this.isParsed = true;
+    this.isNumber = false;
+  }
+
+  /**
+   * Moves to the next token, returning false once the line is used up.  A
+   * line has one more token than it has commas.
+   */
+  public boolean next() {
+    if (position > end) {
+      return false;
+    }
+
+    int tokenLimit = position;
+    while (tokenLimit < end && bytes[tokenLimit] != ',') {
+      tokenLimit++;
+    }
+
+    tokenStart = position;
+    tokenEnd = tokenLimit;
+    while (tokenStart < tokenEnd && isWhitespace(bytes[tokenStart])) {
+      tokenStart++;
+    }
+    while (tokenEnd > tokenStart && isWhitespace(bytes[tokenEnd - 1])) {
+      tokenEnd--;
+    }
+
+    position = tokenLimit + 1;
+    isParsed = false;
+    return true;
+  }
+
+  /**
+   * Whether the rest of the line is only whitespace.
+   */
+  public boolean isBlank() {
+    for (int i = position; i < end; i++) {
+      if (!isWhitespace(bytes[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getStart() {
+    return tokenStart;
+  }
+
+  public int getLength() {
+    return tokenEnd - tokenStart;
+  }
+
+  public boolean isEmpty() {
+    return tokenEnd == tokenStart;
+  }
+
+  public String getString() {
+    return new String(bytes, tokenStart, tokenEnd - tokenStart, UTF8);
+  }
+
+  public void copyTo(Text text) {
+    text.set(bytes, tokenStart, tokenEnd - tokenStart);
+  }
+
+  /**
+   * Whether the token is a number, as Double.valueOf would decide.
+   */
+  public boolean isNumber() {
+    parse();
+    return isNumber;
+  }
+
+  public double getNumber() {
+    parse();
+    if (!isNumber) {
+      throw new NumberFormatException("Not a number: " + getString());
+    }
+    return number;
+  }
+
+  private void parse() {
+    if (isParsed) {
+      return;
+    }
+    isParsed = true;
+    isNumber = parseDecimal();
+    if (!isNumber && mayBeFloatingPointLiteral()) {
+      try {
+        number = Double.parseDouble(getString());
+        isNumber = true;
+      } catch (NumberFormatException e) {
+        isNumber = false;
+      }
+    }
+  }
+
+  /**
+   * Parses [+-]digits[.digits][(e|E)[+-]digits] when the result is exact:
+   * at most fifteen significant digits scaled by a power of ten that is
+   * itself exact, so one multiplication or division rounds correctly.
+   */
+  private boolean parseDecimal() {
+    int i = tokenStart;
+    if (i == tokenEnd) {
+      return false;
+    }
+
+    boolean isNegative = false;
+    if (bytes[i] == '-' || bytes[i] == '+') {
+      isNegative = bytes[i] == '-';
+      i++;
+    }
+
+    long mantissa = 0;
+    int digitCount = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+
+    while (i < tokenEnd && isDigit(bytes[i])) {
+      if (significantDigits > 0 || bytes[i] != '0') {
+        significantDigits++;
+      }
+      mantissa = mantissa * 10 + (bytes[i] - '0');
+      digitCount++;
+      i++;
+    }
+
+    if (i < tokenEnd && bytes[i] == '.') {
+      i++;
+      while (i < tokenEnd && isDigit(bytes[i])) {
+        if (significantDigits > 0 || bytes[i] != '0') {
+          significantDigits++;
+        }
+        mantissa = mantissa * 10 + (bytes[i] - '0');
+        exponent--;
+        digitCount++;
+        i++;
+      }
+    }
+
+    if (digitCount == 0 || significantDigits > MAX_FAST_DIGITS) {
+      return false;
+    }
+
+    if (i < tokenEnd && (bytes[i] == 'e' || bytes[i] == 'E')) {
+      i++;
+      boolean isNegativeExponent = false;
+      if (i < tokenEnd && (bytes[i] == '-' || bytes[i] == '+')) {
+        isNegativeExponent = bytes[i] == '-';
+        i++;
+      }
+      int exponentStart = i;
+      int explicitExponent = 0;
+      while (i < tokenEnd && isDigit(bytes[i]) && explicitExponent < 1000) {
+        explicitExponent = explicitExponent * 10 + (bytes[i] - '0');
+        i++;
+      }
+      if (i == exponentStart) {
+        return false;
+      }
+      exponent += isNegativeExponent ? -explicitExponent : explicitExponent;
+    }
+
+    if (i != tokenEnd) {
+      return false;
+    }
+
+    double value = (double) mantissa;
+    if (mantissa == 0) {
+      value = 0d;
+    } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+      value /= POWERS_OF_TEN[-exponent];
+    } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+      value *= POWERS_OF_TEN[exponent];
+    } else {
+      return false;
+    }
+
+    number = isNegative ? -value : value;
+    return true;
+  }
+
+  /**
+   * Rules out most tokens that can't be a number without building a string,
+   * so typical categorical values never reach Double.parseDouble.
+   */
+  private boolean mayBeFloatingPointLiteral() {
+    if (tokenStart == tokenEnd) {
+      return false;
+    }
+    int i = tokenStart;
+    if (bytes[i] == '-' || bytes[i] == '+') {
+      i++;
+    }
+    if (i == tokenEnd) {
+      return false;
+    }
+    byte first = bytes[i];
+    return isDigit(first) || first == '.' || first == 'N' || first == 'I';
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b >= 0 && b <= ' ';
+  }
+}
@@ -1,57 +1,73 @@
 package hadooptree;
 
+import hadooptree.tree.CompiledTree;
+import hadooptree.tree.Instance;
 import hadooptree.tree.Tree;
-import hadooptree.tree.Node;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.Reader;
+import java.io.FileInputStream;
 import java.util.ArrayList;
-import org.jdom.Element;
-import org.jdom.input.SAXBuilder;
+import java.util.HashMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
 
 public class EvaluateTree {
 
   public static void main(String[] args) throws Exception {
 
     if (args.length != 2) {
-      System.out.println("Expected: java -jar HadoopTree.jar <treeXML> <testCSV>");
+      System.out.println("Expected: java -jar HadoopTree.jar <tree> <testCSV>");
       return;
     }
 
-
-    SAXBuilder saxBuilder = new SAXBuilder();
-    Reader xmlIn = new FileReader(args[0]);
-
-    Element treeElement = saxBuilder.build(xmlIn).getRootElement();
-    Tree tree = Tree.fromElement(treeElement);
-
-    BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+    // Either the binary tree or its XML export
+    Tree tree = Utils.readTree(FileSystem.getLocal(new Configuration()), new Path(args[0]));
+    CompiledTree compiledTree = tree.getCompiledTree();
+
+    LineReader reader = new LineReader(new FileInputStream(args[1]));
+    Text line = new Text();
+    Text category = new Text();
+    CsvTokenizer tokenizer = new CsvTokenizer();
+    ArrayList<HashMap<Text, Integer>> categoryIdMaps = Utils.createCategoryIdMaps(tree);
+    int fieldCount = tree.getFields().size();
+    Instance instance = new Instance();
+    instance.setFieldCount(fieldCount);
     long errors = 0;
     long total = 0;
+    long skipped = 0;
 
-    while (reader.ready()) {
-      String line = reader.readLine();
-      line = line.trim();
-      if (line.isEmpty()) {
+    while (reader.readLine(line) > 0) {
+      tokenizer.reset(line);
+      if (tokenizer.isBlank()) {
         continue;
       }
 
-      String[] tokens = line.split(",");
-      ArrayList<Object> instance = new ArrayList<Object>();
-
-      for (String token : tokens) {
-        Object value;
-        try {
-          value = Double.valueOf(token);
-        } catch (NumberFormatException e) {
-          value = token;
+      String actualClass = null;
+      int fieldId = 0;
+      while (fieldId < fieldCount && tokenizer.next()) {
+        if (fieldId == tree.getObjectiveFieldIndex()) {
+          actualClass = tokenizer.getString();
+        } else if (categoryIdMaps.get(fieldId) != null) {
+          // Categories unseen in training match no split
+          tokenizer.copyTo(category);
+          Integer categoryId = categoryIdMaps.get(fieldId).get(category);
+          instance.setCategoryId(fieldId, categoryId == null ? -1 : categoryId);
+        } else {
+          // Neither do values that aren't numbers, as NaN
+          instance.setNumber(fieldId, tokenizer.isNumber() ? tokenizer.getNumber() : Double.NaN);
         }
-        instance.add(value);
+        fieldId++;
       }
 
-      Node node = tree.evalToNode(instance);
-      String predictedClass = node.getPredictedClass();
-      String actualClass = (String) instance.get(tree.getObjectiveFieldIndex());
+      // The instance is reused, so a short row would keep the last row's
+      // values in its missing fields
+      if (fieldId < fieldCount) {
+        skipped++;
+        continue;
+      }
+
+      String predictedClass = compiledTree.getPredictedClass(compiledTree.routeFromRoot(instance));
 
       if (!predictedClass.equals(actualClass)) {
         errors++;
@@ -59,11 +75,15 @@ public class EvaluateTree {
 
       total++;
     }
+    reader.close();
 
     long correct = total - errors;
     double successRate = (double) correct / (double) total;
     successRate *= 100;
     System.out.println("Result: " + correct + "/" + total + " --- " + successRate);
+    if (skipped > 0) {
+      System.out.println("Skipped " + skipped + " rows with fewer than " + fieldCount + " fields");
+    }
 
   }
 }
@@ -0,0 +1,40 @@
+package hadooptree;
+
+import hadooptree.tree.Field;
+import hadooptree.tree.Node;
+import java.util.HashMap;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Remembers the numeric bucket count of every grid node and field, so the
+ * split job's tasks only work each one out once.  Nodes that share a grid
+ * share its bucket count.
+ */
+public class NumericBucketCounts {
+
+  private final Configuration conf;
+  private final int fieldCount;
+  private final int classCount;
+  private final HashMap<Integer, int[]> bucketCounts = new HashMap<Integer, int[]>();
+
+  public NumericBucketCounts(Configuration conf, int fieldCount, int classCount) {
+    this.conf = conf;
+    this.fieldCount = fieldCount;
+    this.classCount = classCount;
+  }
+
+  public int get(Node node, Field field) {
+    Node gridNode = node.getGridNode(field);
+    int[] counts = bucketCounts.get(gridNode.getId());
+    if (counts == null) {
+      counts = new int[fieldCount];
+      bucketCounts.put(gridNode.getId(), counts);
+    }
+
+    int fieldId = field.getIndex();
+    if (counts[fieldId] == 0) {
+      counts[fieldId] = Utils.getNumericBucketCount(conf, field, gridNode.getTotalCount(), classCount);
+    }
+    return counts[fieldId];
+  }
+}
@@ -6,10 +6,10 @@ public class SplitResults {
 
   private final Split split;
   private final double informationGain;
-  private final Long[] trueCounts;
-  private final Long[] falseCounts;
+  private final long[] trueCounts;
+  private final long[] falseCounts;
 
-  public SplitResults(Split split, double informationGain, Long[] trueCounts, Long[] falseCounts) {
+  public SplitResults(Split split, double informationGain, long[] trueCounts, long[] falseCounts) {
     this.split = split;
     this.informationGain = informationGain;
     this.trueCounts = trueCounts;
@@ -24,11 +24,11 @@ public class SplitResults {
     return informationGain;
   }
 
-  public Long[] getTrueCounts() {
+  public long[] getTrueCounts() {
     return trueCounts;
   }
 
-  public Long[] getFalseCounts() {
+  public long[] getFalseCounts() {
     return falseCounts;
   }
 }
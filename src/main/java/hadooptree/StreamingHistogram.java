@@ -0,0 +1,407 @@
+package hadooptree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A bounded size, mergeable histogram of a stream of numbers as described by
+ * Ben-Haim and Tom-Tov ("A Streaming Parallel Decision Tree Algorithm").  The
+ * values are summarized by at most maxBins (position, count) centroids, and
+ * the closest centroids are merged once there are too many.  As long as no
+ * centroids were merged the histogram holds every distinct value exactly.
+ */
+public class StreamingHistogram implements Writable {
+
+  private int maxBins;
+  private int size;
+  private double[] positions;
+  private long[] counts;
+  private boolean isCompact;
+  private boolean isExact;
+
+  // Scratch space for compacting, kept between compactions
+  private int[] next;
+  private int[] previous;
+  private int[] versions;
+  private double[] heapGaps;
+  private int[] heapLefts;
+  private int[] heapVersions;
+  private int heapSize;
+
+  public StreamingHistogram() {
+    this(Utils.DEFAULT_STREAMING_BINS);
+  }
+
+  public StreamingHistogram(int maxBins) {
+    this.maxBins = maxBins;
+    this.positions = new double[2 * maxBins];
+    this.counts = new long[2 * maxBins];
+    clear();
+  }
+
+  public final void clear() {
+    size = 0;
+    isCompact = true;
+    isExact = true;
+  }
+
+  public int getMaxBins() {
+    return maxBins;
+  }
+
+  public void add(double value) {
+    add(value, 1);
+  }
+
+  public void add(double position, long count) {
+    if (size == positions.length) {
+      compact();
+    }
+    positions[size] = position;
+    counts[size] = count;
+    size++;
+    isCompact = false;
+  }
+
+  public void merge(StreamingHistogram other) {
+    other.compact();
+    for (int i = 0; i < other.size; i++) {
+      add(other.positions[i], other.counts[i]);
+    }
+    isExact &= other.isExact;
+  }
+
+  public int getBinCount() {
+    compact();
+    return size;
+  }
+
+  public double getPosition(int bin) {
+    compact();
+    return positions[bin];
+  }
+
+  public long getCount(int bin) {
+    compact();
+    return counts[bin];
+  }
+
+  public boolean isExact() {
+    compact();
+    return isExact;
+  }
+
+  public long getTotalCount() {
+    long total = 0;
+    for (int i = 0; i < size; i++) {
+      total += counts[i];
+    }
+    return total;
+  }
+
+  /**
+   * Estimates how many values are less or equal to the given number.
+   */
+  public double sum(double value) {
+    compact();
+    if (size == 0 || value < positions[0]) {
+      return 0;
+    }
+
+    double sum = 0;
+    int bin = 0;
+    while (bin < size - 1 && positions[bin + 1] <= value) {
+      sum += counts[bin];
+      bin++;
+    }
+
+    if (isExact || bin == size - 1) {
+      return sum + counts[bin];
+    }
+
+    // Interpolate between the centroids around the value
+    double leftCount = counts[bin];
+    double rightCount = counts[bin + 1];
+    double fraction = (value - positions[bin]) / (positions[bin + 1] - positions[bin]);
+    double valueCount = leftCount + (rightCount - leftCount) * fraction;
+    sum += leftCount / 2d;
+    sum += (leftCount + valueCount) / 2d * fraction;
+    return sum;
+  }
+
+  /**
+   * Finds the points that divide the values into parts of (approximately)
+   * equal size.  An exact histogram returns the midpoints between its
+   * distinct values instead.
+   */
+  public double[] uniform(int parts) {
+    compact();
+    if (size < 2) {
+      return new double[0];
+    }
+
+    if (isExact) {
+      double[] midpoints = new double[size - 1];
+      for (int i = 0; i < size - 1; i++) {
+        midpoints[i] = (positions[i] + positions[i + 1]) / 2d;
+      }
+      return midpoints;
+    }
+
+    double total = getTotalCount();
+    double[] points = new double[parts - 1];
+    int pointCount = 0;
+
+    int bin = 0;
+    double binSum = counts[0] / 2d;
+    for (int part = 1; part < parts; part++) {
+      double target = total * part / (double) parts;
+
+      while (bin < size - 2 && binSum + (counts[bin] + counts[bin + 1]) / 2d <= target) {
+        binSum += (counts[bin] + counts[bin + 1]) / 2d;
+        bin++;
+      }
+
+      double point;
+      if (target < binSum) {
+        point = positions[bin];
+      } else {
+        // Solve the trapezoid between the two centroids for the target
+        double d = target - binSum;
+        double a = counts[bin + 1] - counts[bin];
+        double b = 2d * counts[bin];
+        double z;
+        if (a == 0) {
+          z = d * 2d / b;
+        } else {
+          z = (-b + Math.sqrt(b * b + 4d * a * d * 2d)) / (2d * a);
+        }
+        z = Math.max(0, Math.min(1, z));
+        point = positions[bin] + (positions[bin + 1] - positions[bin]) * z;
+      }
+
+      if (pointCount == 0 || point > points[pointCount - 1]) {
+        points[pointCount] = point;
+        pointCount++;
+      }
+    }
+
+    double[] result = new double[pointCount];
+    System.arraycopy(points, 0, result, 0, pointCount);
+    return result;
+  }
+
+  private void compact() {
+    if (isCompact) {
+      return;
+    }
+
+    sort(0, size - 1);
+
+    int unique = 0;
+    for (int i = 0; i < size; i++) {
+      if (unique > 0 && positions[unique - 1] == positions[i]) {
+        counts[unique - 1] += counts[i];
+      } else {
+        positions[unique] = positions[i];
+        counts[unique] = counts[i];
+        unique++;
+      }
+    }
+    size = unique;
+
+    if (size > maxBins) {
+      mergeClosest(size - maxBins);
+      isExact = false;
+    }
+
+    isCompact = true;
+  }
+
+  /**
+   * Merges the closest pair of neighbouring centroids, the given number of
+   * times, in one pass.  The gaps sit in a min-heap keyed by the gap and
+   * then the left centroid, so the pairs merge in the order a scan for the
+   * smallest gap would pick them.  The centroids are linked to their
+   * neighbours while merging, and a merge leaves stale heap entries behind
+   * rather than finding them: an entry is only used if its left centroid's
+   * version still matches.
+   */
+  private void mergeClosest(int merges) {
+    ensureScratch();
+    for (int i = 0; i < size; i++) {
+      previous[i] = i - 1;
+      next[i] = i + 1;
+      versions[i] = 0;
+    }
+    next[size - 1] = -1;
+
+    heapSize = 0;
+    for (int i = 0; i < size - 1; i++) {
+      push(positions[i + 1] - positions[i], i, 0);
+    }
+
+    while (merges > 0) {
+      int left = heapLefts[0];
+      int version = heapVersions[0];
+      pop();
+      if (versions[left] != version) {
+        continue;
+      }
+
+      int right = next[left];
+      long mergedCount = counts[left] + counts[right];
+      positions[left] = (positions[left] * counts[left] + positions[right] * counts[right]) / mergedCount;
+      counts[left] = mergedCount;
+      versions[right] = -1;
+
+      next[left] = next[right];
+      if (next[left] >= 0) {
+        previous[next[left]] = left;
+        versions[left]++;
+        push(positions[next[left]] - positions[left], left, versions[left]);
+      } else {
+        versions[left] = -1;
+      }
+      int before = previous[left];
+      if (before >= 0) {
+        versions[before]++;
+        push(positions[left] - positions[before], before, versions[before]);
+      }
+      merges--;
+    }
+
+    // Packs the centroids that are left back into order
+    int bin = 0;
+    for (int i = 0; i >= 0; i = next[i]) {
+      positions[bin] = positions[i];
+      counts[bin] = counts[i];
+      bin++;
+    }
+    size = bin;
+  }
+
+  private void ensureScratch() {
+    if (next == null || next.length != positions.length) {
+      next = new int[positions.length];
+      previous = new int[positions.length];
+      versions = new int[positions.length];
+      // The first gaps, and two more for every merge
+      heapGaps = new double[3 * positions.length];
+      heapLefts = new int[3 * positions.length];
+      heapVersions = new int[3 * positions.length];
+    }
+  }
+
+  private void push(double gap, int left, int version) {
+    int i = heapSize;
+    heapSize++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!isBefore(gap, left, heapGaps[parent], heapLefts[parent])) {
+        break;
+      }
+      heapGaps[i] = heapGaps[parent];
+      heapLefts[i] = heapLefts[parent];
+      heapVersions[i] = heapVersions[parent];
+      i = parent;
+    }
+    heapGaps[i] = gap;
+    heapLefts[i] = left;
+    heapVersions[i] = version;
+  }
+
+  private void pop() {
+    heapSize--;
+    double gap = heapGaps[heapSize];
+    int left = heapLefts[heapSize];
+    int version = heapVersions[heapSize];
+
+    int i = 0;
+    int child;
+    while ((child = 2 * i + 1) < heapSize) {
+      if (child + 1 < heapSize && isBefore(heapGaps[child + 1], heapLefts[child + 1], heapGaps[child], heapLefts[child])) {
+        child++;
+      }
+      if (!isBefore(heapGaps[child], heapLefts[child], gap, left)) {
+        break;
+      }
+      heapGaps[i] = heapGaps[child];
+      heapLefts[i] = heapLefts[child];
+      heapVersions[i] = heapVersions[child];
+      i = child;
+    }
+    heapGaps[i] = gap;
+    heapLefts[i] = left;
+    heapVersions[i] = version;
+  }
+
+  private static boolean isBefore(double gap, int left, double otherGap, int otherLeft) {
+    return gap < otherGap || (gap == otherGap && left < otherLeft);
+  }
+
+  private void sort(int low, int high) {
+    while (low < high) {
+      double pivot = positions[(low + high) >>> 1];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (positions[i] < pivot) {
+          i++;
+        }
+        while (positions[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          double position = positions[i];
+          positions[i] = positions[j];
+          positions[j] = position;
+          long count = counts[i];
+          counts[i] = counts[j];
+          counts[j] = count;
+          i++;
+          j--;
+        }
+      }
+      if (j - low < high - i) {
+        sort(low, j);
+        low = i;
+      } else {
+        sort(i, high);
+        high = j;
+      }
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    compact();
+    WritableUtils.writeVInt(out, maxBins);
+    out.writeBoolean(isExact);
+    WritableUtils.writeVInt(out, size);
+    for (int i = 0; i < size; i++) {
+      out.writeDouble(positions[i]);
+      WritableUtils.writeVLong(out, counts[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int newMaxBins = WritableUtils.readVInt(in);
+    if (newMaxBins != maxBins) {
+      maxBins = newMaxBins;
+      positions = new double[2 * maxBins];
+      counts = new long[2 * maxBins];
+    }
+    isExact = in.readBoolean();
+    size = WritableUtils.readVInt(in);
+    for (int i = 0; i < size; i++) {
+      positions[i] = in.readDouble();
+      counts[i] = WritableUtils.readVLong(in);
+    }
+    isCompact = true;
+  }
+}
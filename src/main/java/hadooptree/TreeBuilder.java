@@ -1,25 +1,39 @@
 package hadooptree;
 
 import hadooptree.job.NodeFieldSplitsJob;
-import hadooptree.job.NodeSplitsJob;
 import hadooptree.job.DefineFieldsJob;
 import hadooptree.job.FilterInstancesJob;
 import hadooptree.job.GrowSubtreesJob;
+import hadooptree.job.NodeFieldPartitioner;
+import hadooptree.job.NodeInstanceSplitsJob;
+import hadooptree.job.NodePartitioner;
+import hadooptree.job.PrepareInstancesJob;
+import hadooptree.job.WeightedPartitioner;
+import hadooptree.io.HistogramWritable;
+import hadooptree.io.InstanceInputFormat;
+import hadooptree.io.InstanceWritable;
+import hadooptree.io.NodeFieldWritable;
+import hadooptree.io.SideFileOutputFormat;
 import hadooptree.tree.Field;
 import hadooptree.tree.Tree;
 import hadooptree.tree.Node;
 import hadooptree.tree.Split;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -28,17 +42,17 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.jdom.Element;
 import org.jdom.input.SAXBuilder;
-import org.jdom.output.XMLOutputter;
 
 public class TreeBuilder {
 
@@ -53,17 +67,23 @@ public class TreeBuilder {
 
     Path inputPath = new Path(otherArgs[0]);
     Path outputPath = new Path(otherArgs[1]);
-    Path dataPath = inputPath;
     Path fieldPath = new Path(outputPath, "fields");
+    Path preparedPath = new Path(outputPath, "instances");
+    Path dataPath = preparedPath;
     Path categorySplitsPath = new Path(outputPath, "categorySplits");
-    Path fieldSplitsPath = new Path(outputPath, "fieldSplits");
     Path subtreesPath = new Path(outputPath, "subtrees");
     Path filteredInstancesPath = new Path(outputPath, "filteredInstances");
-    Path treePath = new Path(outputPath, "tree/tree.xml");
+    Path histogramsPath = new Path(outputPath, Utils.HISTOGRAMS_DIRECTORY);
+    Path treeDirectory = new Path(outputPath, "tree");
+    Path treePath = new Path(outputPath, "tree/tree.bin");
+    Path treeXmlPath = new Path(outputPath, "tree/tree.xml");
 
     int objectiveFieldId = Integer.valueOf(otherArgs[2]);
 
-    Job defineFieldsJob = setupDefineFieldsJob(args, conf, inputPath, fieldPath);
+    int reduceSlots = getReduceSlots(conf);
+    int defineFieldsReduceTasks = Math.max(1, Math.min(countInputFields(conf, inputPath), reduceSlots));
+
+    Job defineFieldsJob = setupDefineFieldsJob(args, conf, inputPath, fieldPath, defineFieldsReduceTasks);
 
     boolean result = defineFieldsJob.waitForCompletion(true);
 
@@ -88,8 +108,15 @@ public class TreeBuilder {
 //    treeOut.writeUTF(treeXml);
 //    treeOut.close();
 
-    writeTree(tree, fs, treePath);
+    int snapshotVersion = 0;
+    Path snapshotPath = shipSnapshot(tree, fs, conf, treeDirectory, null, snapshotVersion++);
 
+    Job prepareInstancesJob = prepareInstancesJob(args, conf, inputPath, preparedPath);
+    result = prepareInstancesJob.waitForCompletion(true);
+
+    if (!result) {
+      System.exit(1);
+    }
 
     boolean grewTree = true;
     long currentLeafInstanceCount = 0;
@@ -98,13 +125,18 @@ public class TreeBuilder {
     }
 
     int filterIteration = 0;
+    HashMap<Integer, ArrayList<Path>> partitions = null;
 
     while (grewTree) {
-      DistributedCache.addCacheFile(treePath.toUri(), conf);
-
       double ratio = (double) currentLeafInstanceCount / (double) currentInstanceCount;
       if (ratio > Utils.SUBTREE_AND_LEAF_RATIO) {
-        Job growSubtreesJob = growSubtreesJob(args, conf, inputPath, subtreesPath);
+        TreeMap<Integer, Long> subtreeWeights = getFrontierWeights(nodeMap, 0, Utils.DEFAULT_SUBTREE_FLOOR - 1);
+        WeightedPartitioner.setNodeWeights(conf, subtreeWeights);
+        int subtreeReduceTasks = computeReduceTasks(conf, reduceSlots, subtreeWeights.size(), Utils.sumCounts(subtreeWeights.values()));
+
+        // The filtered data still holds every instance outside the leaves
+        Path[] subtreeInputPaths = selectInputPaths(dataPath, partitions, nodeMap, subtreeWeights.keySet());
+        Job growSubtreesJob = growSubtreesJob(args, conf, subtreeInputPaths, subtreesPath, subtreeReduceTasks);
         result = growSubtreesJob.waitForCompletion(true);
 
         if (!result) {
@@ -120,11 +152,16 @@ public class TreeBuilder {
             originalNode.merge(subtree, nodeMap);
           }
 
-          writeTree(tree, fs, treePath);
+          snapshotPath = shipSnapshot(tree, fs, conf, treeDirectory, snapshotPath, snapshotVersion++);
         }
 
+        // The filter groups its output partitions by these weights
+        TreeMap<Integer, Long> filterWeights = getFrontierWeights(nodeMap, 0, Long.MAX_VALUE);
+        WeightedPartitioner.setNodeWeights(conf, filterWeights);
+
         Path filterOutputPath = new Path(filteredInstancesPath, String.valueOf(filterIteration));
-        Job filteredInstancesJob = filterInstancesJob(args, conf, dataPath, filterOutputPath);
+        Path[] filterInputPaths = selectInputPaths(dataPath, partitions, nodeMap, filterWeights.keySet());
+        Job filteredInstancesJob = filterInstancesJob(args, conf, filterInputPaths, filterOutputPath);
         result = filteredInstancesJob.waitForCompletion(true);
 
         if (!result) {
@@ -132,31 +169,92 @@ public class TreeBuilder {
         }
 
         dataPath = filterOutputPath;
+        partitions = readPartitionManifest(conf, filterOutputPath);
+
+        if (isFragmented(conf, partitions)) {
+          Path compactedPath = new Path(filteredInstancesPath, filterIteration + "-compacted");
+          Job compactionJob = compactionJob(args, conf, new Path[]{filterOutputPath}, compactedPath);
+          result = compactionJob.waitForCompletion(true);
+
+          if (!result) {
+            System.exit(1);
+          }
+
+          fs.delete(filterOutputPath, true);
+          dataPath = compactedPath;
+          partitions = readPartitionManifest(conf, compactedPath);
+        }
 
         currentInstanceCount -= currentLeafInstanceCount;
         currentLeafInstanceCount = 0;
         filterIteration++;
+
+        // Every instance reached a leaf, so there is nothing left to split
+        if (partitions.isEmpty()) {
+          break;
+        }
+      }
+
+      if (fs.exists(histogramsPath)) {
+        conf.set(Utils.PARENT_HISTOGRAMS_KEY, histogramsPath.toString());
       }
 
-      Job categorySplitsJob = findBestCategorySplitJob(args, conf, dataPath, categorySplitsPath);
+      TreeMap<Integer, Long> frontierWeights = getFrontierWeights(nodeMap, Utils.DEFAULT_SUBTREE_FLOOR, Long.MAX_VALUE);
+      Path[] splitInputPaths = selectInputPaths(dataPath, partitions, nodeMap, frontierWeights.keySet());
+
+      Job categorySplitsJob;
+      if (isHorizontalSplitLayout(conf, tree, nodeMap, estimateMapTaskCount(conf, splitInputPaths))) {
+        TreeMap<Integer, Long> nodeWeights = frontierWeights;
+        WeightedPartitioner.setNodeWeights(conf, nodeWeights);
+        int nodeReduceTasks = computeReduceTasks(conf, reduceSlots, nodeWeights.size(), Utils.sumCounts(nodeWeights.values()));
+
+        categorySplitsJob = findBestNodeSplitJob(args, conf, splitInputPaths, categorySplitsPath, nodeReduceTasks);
+      } else {
+        // A derived node's histograms are keyed from its sibling's instances
+        TreeMap<Integer, Long> splitWeights = new TreeMap<Integer, Long>(frontierWeights);
+        for (Entry<Integer, Long> entry : splitWeights.entrySet()) {
+          Node node = nodeMap.get(entry.getKey());
+          if (node.isDerived()) {
+            entry.setValue(node.getSibling().getTotalCount());
+          }
+        }
+        ArrayList<Integer> splitFieldIds = new ArrayList<Integer>();
+        for (int fieldId = 0; fieldId < fields.size(); fieldId++) {
+          if (fieldId != objectiveFieldId) {
+            splitFieldIds.add(fieldId);
+          }
+        }
+        WeightedPartitioner.setNodeWeights(conf, splitWeights);
+        WeightedPartitioner.setFieldIds(conf, splitFieldIds);
+        long splitRecordCount = 0;
+        for (Entry<Integer, Long> entry : splitWeights.entrySet()) {
+          ArrayList<Split> candidateSplits = nodeMap.get(entry.getKey()).getCandidateSplits();
+          // Each instance also lands in one child per candidate split
+          int instanceCopies = 1 + (candidateSplits == null ? 0 : candidateSplits.size());
+          splitRecordCount += entry.getValue() * splitFieldIds.size() * instanceCopies;
+        }
+        int splitReduceTasks = computeReduceTasks(conf, reduceSlots, (long) splitWeights.size() * splitFieldIds.size(), splitRecordCount);
+
+        categorySplitsJob = findBestCategorySplitJob(args, conf, splitInputPaths, categorySplitsPath, splitReduceTasks);
+      }
       result = categorySplitsJob.waitForCompletion(true);
 
       if (!result) {
         System.exit(1);
       }
 
-      Job fieldSplitsJob = findBestFieldSplitJob(args, conf, categorySplitsPath, fieldSplitsPath);
-      result = fieldSplitsJob.waitForCompletion(true);
-
-      if (!result) {
-        System.exit(1);
+      // Keep this pass's histograms so the next pass can derive nodes from them
+      fs.delete(histogramsPath, true);
+      Path newHistogramsPath = new Path(categorySplitsPath, Utils.HISTOGRAMS_DIRECTORY);
+      if (fs.exists(newHistogramsPath)) {
+        fs.rename(newHistogramsPath, histogramsPath);
       }
 
-      BuildResults results = readNewSplits(tree, nodeMap, conf, fieldSplitsPath);
+      BuildResults results = readNewSplits(tree, nodeMap, conf, categorySplitsPath);
       grewTree = results.isGrewTree();
       currentLeafInstanceCount += results.getLeafInstanceCount();
 
-      writeTree(tree, fs, treePath);
+      snapshotPath = shipSnapshot(tree, fs, conf, treeDirectory, snapshotPath, snapshotVersion++);
 
 //      fs.delete(treePath, true);
 //      treeOut = fs.create(treePath);
@@ -169,98 +267,158 @@ public class TreeBuilder {
       System.out.println("CurrentLeafInstanceCount: " + currentLeafInstanceCount);
 
       fs.delete(categorySplitsPath, true);
-      fs.delete(fieldSplitsPath, true);
+    }
+
+    // The complete tree, which the snapshot was only a part of
+    Utils.writeTree(tree, fs, treePath);
+    fs.delete(snapshotPath, false);
+    if (conf.getBoolean(Utils.TREE_XML_KEY, true)) {
+      Utils.writeTreeXml(tree, fs, treeXmlPath);
     }
 
     System.exit(0);
   }
 
-  private static void writeTree(Tree tree, FileSystem fs, Path treePath) throws IOException {
-    XMLOutputter outputter = new XMLOutputter();
-    String treeXml = outputter.outputString(tree.toElement());
-
-    File treeFile = new File("tree.xml");
-    treeFile.delete();
-    System.out.println("Writing tree to: " + treeFile.getAbsolutePath());
-    FileWriter writer = new FileWriter(treeFile);
-    writer.write(treeXml);
-    writer.close();
-    fs.copyFromLocalFile(false, true, new Path(treeFile.getPath()), treePath);
+  /**
+   * Writes the routing snapshot the jobs load under a new name and replaces
+   * the last one with it.  Every version has its own path, so a task JVM's
+   * TreeCache never takes a new snapshot for one it already decoded.
+   */
+  private static Path shipSnapshot(Tree tree, FileSystem fs, Configuration conf, Path treeDirectory,
+          Path lastSnapshotPath, int version) throws IOException {
+    Path snapshotPath = new Path(treeDirectory, "snapshot-" + version + ".bin");
+    Utils.writeTreeSnapshot(tree, fs, snapshotPath);
+    DistributedCache.setCacheFiles(new URI[]{snapshotPath.toUri()}, conf);
+    if (lastSnapshotPath != null) {
+      fs.delete(lastSnapshotPath, false);
+    }
+    return snapshotPath;
   }
 
-  private static Job growSubtreesJob(String[] args, Configuration conf, Path inputPath, Path outputPath) throws IOException {
+  private static Job growSubtreesJob(String[] args, Configuration conf, Path[] inputPaths, Path outputPath, int reduceTasks) throws IOException {
     Job growSubtreesJob = new Job(conf, "grow subtrees");
     growSubtreesJob.setJarByClass(TreeBuilder.class);
     growSubtreesJob.setMapperClass(GrowSubtreesJob.Map.class);
     growSubtreesJob.setReducerClass(GrowSubtreesJob.Reduce.class);
+    growSubtreesJob.setPartitionerClass(NodePartitioner.class);
+    growSubtreesJob.setNumReduceTasks(reduceTasks);
 
-    growSubtreesJob.setMapOutputKeyClass(Text.class);
-    growSubtreesJob.setMapOutputValueClass(Text.class);
+    growSubtreesJob.setInputFormatClass(InstanceInputFormat.class);
+    growSubtreesJob.setMapOutputKeyClass(IntWritable.class);
+    growSubtreesJob.setMapOutputValueClass(InstanceWritable.class);
     growSubtreesJob.setOutputKeyClass(NullWritable.class);
     growSubtreesJob.setOutputValueClass(Text.class);
 
-    FileInputFormat.addInputPath(growSubtreesJob, inputPath);
+    FileInputFormat.setInputPaths(growSubtreesJob, inputPaths);
     FileOutputFormat.setOutputPath(growSubtreesJob, outputPath);
 
     return growSubtreesJob;
   }
 
-  private static Job filterInstancesJob(String[] args, Configuration conf, Path inputPath, Path outputPath) throws IOException {
+  private static Job filterInstancesJob(String[] args, Configuration conf, Path[] inputPaths, Path outputPath) throws IOException {
     Job filterInstancesJob = new Job(conf, "filter training instances");
     filterInstancesJob.setJarByClass(TreeBuilder.class);
     filterInstancesJob.setMapperClass(FilterInstancesJob.Map.class);
-    filterInstancesJob.setReducerClass(Reducer.class);
+    filterInstancesJob.setNumReduceTasks(0);
 
-    filterInstancesJob.setMapOutputKeyClass(NullWritable.class);
-    filterInstancesJob.setMapOutputValueClass(Text.class);
-    filterInstancesJob.setOutputKeyClass(LongWritable.class);
-    filterInstancesJob.setOutputValueClass(Text.class);
+    filterInstancesJob.setInputFormatClass(InstanceInputFormat.class);
+    filterInstancesJob.setOutputKeyClass(NullWritable.class);
+    filterInstancesJob.setOutputValueClass(InstanceWritable.class);
 
-    FileInputFormat.addInputPath(filterInstancesJob, inputPath);
+    // The tasks write the partitions and manifests themselves
+    filterInstancesJob.setOutputFormatClass(SideFileOutputFormat.class);
+    FileInputFormat.setInputPaths(filterInstancesJob, inputPaths);
     FileOutputFormat.setOutputPath(filterInstancesJob, outputPath);
 
     return filterInstancesJob;
   }
 
-  private static Job findBestFieldSplitJob(String[] args, Configuration conf, Path inputPath, Path outputPath) throws IOException {
-    Job fieldSplitJob = new Job(conf, "best field splits");
-    fieldSplitJob.setJarByClass(TreeBuilder.class);
-    fieldSplitJob.setMapperClass(NodeSplitsJob.Map.class);
-    fieldSplitJob.setReducerClass(NodeSplitsJob.Reduce.class);
-
-    fieldSplitJob.setMapOutputKeyClass(Text.class);
-    fieldSplitJob.setMapOutputValueClass(Text.class);
-    fieldSplitJob.setOutputKeyClass(NullWritable.class);
-    fieldSplitJob.setOutputValueClass(Text.class);
-
-    FileInputFormat.addInputPath(fieldSplitJob, inputPath);
-    FileOutputFormat.setOutputPath(fieldSplitJob, outputPath);
-
-    return fieldSplitJob;
+  /**
+   * Rewrites fragmented partitions into a few large files.  It is the filter
+   * job again, over much larger input splits: no instances are dropped, but
+   * each map task writes one file per group of nodes and a fresh manifest.
+   */
+  private static Job compactionJob(String[] args, Configuration conf, Path[] inputPaths, Path outputPath) throws IOException {
+    Configuration compactionConf = new Configuration(conf);
+    compactionConf.setLong(Utils.SPLIT_SIZE_KEY,
+            conf.getLong(Utils.COMPACTION_SIZE_KEY, Utils.DEFAULT_COMPACTION_SIZE));
+
+    Job compactionJob = filterInstancesJob(args, compactionConf, inputPaths, outputPath);
+    compactionJob.setJobName("compact training instances");
+    return compactionJob;
   }
 
-  private static Job findBestCategorySplitJob(String[] args, Configuration conf, Path inputPath, Path outputPath) throws IOException {
+  private static Job findBestCategorySplitJob(String[] args, Configuration conf, Path[] inputPaths, Path outputPath, int reduceTasks) throws IOException {
     Job categorySplitJob = new Job(conf, "best category splits");
     categorySplitJob.setJarByClass(TreeBuilder.class);
     categorySplitJob.setMapperClass(NodeFieldSplitsJob.Map.class);
     categorySplitJob.setReducerClass(NodeFieldSplitsJob.Reduce.class);
+    categorySplitJob.setPartitionerClass(NodeFieldPartitioner.class);
+    categorySplitJob.setNumReduceTasks(reduceTasks);
 
-    categorySplitJob.setMapOutputKeyClass(Text.class);
-    categorySplitJob.setMapOutputValueClass(Text.class);
+    categorySplitJob.setInputFormatClass(InstanceInputFormat.class);
+    categorySplitJob.setMapOutputKeyClass(NodeFieldWritable.class);
+    categorySplitJob.setMapOutputValueClass(HistogramWritable.class);
     categorySplitJob.setOutputKeyClass(NullWritable.class);
     categorySplitJob.setOutputValueClass(Text.class);
 
-    FileInputFormat.addInputPath(categorySplitJob, inputPath);
+    FileInputFormat.setInputPaths(categorySplitJob, inputPaths);
     FileOutputFormat.setOutputPath(categorySplitJob, outputPath);
 
     return categorySplitJob;
   }
 
-  private static Job setupDefineFieldsJob(String[] args, Configuration conf, Path inputPath, Path outputPath) throws IOException {
+  private static Job findBestNodeSplitJob(String[] args, Configuration conf, Path[] inputPaths, Path outputPath, int reduceTasks) throws IOException {
+    Job nodeSplitJob = new Job(conf, "best node splits");
+    nodeSplitJob.setJarByClass(TreeBuilder.class);
+    nodeSplitJob.setMapperClass(NodeInstanceSplitsJob.Map.class);
+    nodeSplitJob.setReducerClass(NodeInstanceSplitsJob.Reduce.class);
+    nodeSplitJob.setPartitionerClass(NodePartitioner.class);
+    nodeSplitJob.setNumReduceTasks(reduceTasks);
+
+    nodeSplitJob.setInputFormatClass(InstanceInputFormat.class);
+    nodeSplitJob.setMapOutputKeyClass(IntWritable.class);
+    nodeSplitJob.setMapOutputValueClass(InstanceWritable.class);
+    nodeSplitJob.setOutputKeyClass(NullWritable.class);
+    nodeSplitJob.setOutputValueClass(Text.class);
+
+    FileInputFormat.setInputPaths(nodeSplitJob, inputPaths);
+    FileOutputFormat.setOutputPath(nodeSplitJob, outputPath);
+
+    return nodeSplitJob;
+  }
+
+  private static Job prepareInstancesJob(String[] args, Configuration conf, Path inputPath, Path outputPath) throws IOException {
+    Job prepareInstancesJob = new Job(conf, "prepare training instances");
+    prepareInstancesJob.setJarByClass(TreeBuilder.class);
+    prepareInstancesJob.setMapperClass(PrepareInstancesJob.Map.class);
+    prepareInstancesJob.setNumReduceTasks(0);
+
+    prepareInstancesJob.setOutputKeyClass(NullWritable.class);
+    prepareInstancesJob.setOutputValueClass(InstanceWritable.class);
+
+    FileInputFormat.addInputPath(prepareInstancesJob, inputPath);
+    setInstanceOutput(prepareInstancesJob, outputPath);
+
+    return prepareInstancesJob;
+  }
+
+  /**
+   * Training instances are kept in block compressed sequence files.
+   */
+  private static void setInstanceOutput(Job job, Path outputPath) {
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, outputPath);
+    FileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+  }
+
+  private static Job setupDefineFieldsJob(String[] args, Configuration conf, Path inputPath, Path outputPath, int reduceTasks) throws IOException {
     Job defineFieldsJob = new Job(conf, "define fields");
     defineFieldsJob.setJarByClass(TreeBuilder.class);
     defineFieldsJob.setMapperClass(DefineFieldsJob.Map.class);
     defineFieldsJob.setReducerClass(DefineFieldsJob.Reduce.class);
+    defineFieldsJob.setNumReduceTasks(reduceTasks);
     defineFieldsJob.setMapOutputKeyClass(IntWritable.class);
     defineFieldsJob.setMapOutputValueClass(Text.class);
 
@@ -273,6 +431,238 @@ public class TreeBuilder {
     return defineFieldsJob;
   }
 
+  private static int getReduceSlots(Configuration conf) throws IOException {
+    int reduceSlots = conf.getInt(Utils.REDUCE_SLOTS_KEY, 0);
+    if (reduceSlots <= 0) {
+      reduceSlots = getClusterReduceSlots(conf);
+    }
+    return Math.max(1, reduceSlots);
+  }
+
+  /**
+   * The new API has no cluster status in 0.20, so this needs the old JobConf.
+   */
+  @SuppressWarnings("deprecation")
+  private static int getClusterReduceSlots(Configuration conf) throws IOException {
+    JobClient jobClient = new JobClient(new org.apache.hadoop.mapred.JobConf(conf));
+    return jobClient.getClusterStatus().getMaxReduceTasks();
+  }
+
+  /**
+   * Enough reducers for each to see about RECORDS_PER_REDUCER records, but
+   * never more than there are keys or cluster slots.
+   */
+  private static int computeReduceTasks(Configuration conf, int reduceSlots, long keyCount, long recordCount) {
+    long recordsPerReducer = conf.getLong(Utils.RECORDS_PER_REDUCER_KEY, Utils.DEFAULT_RECORDS_PER_REDUCER);
+    long reduceTasks = (recordCount + recordsPerReducer - 1) / recordsPerReducer;
+    reduceTasks = Math.min(reduceTasks, Math.min(keyCount, reduceSlots));
+    return (int) Math.max(1, reduceTasks);
+  }
+
+  /**
+   * The unsplit, non-leaf nodes whose counts fall within [minCount, maxCount],
+   * with their instance counts.
+   */
+  private static TreeMap<Integer, Long> getFrontierWeights(HashMap<Integer, Node> nodeMap, long minCount, long maxCount) {
+    TreeMap<Integer, Long> weights = new TreeMap<Integer, Long>();
+    for (Node node : nodeMap.values()) {
+      long count = node.getTotalCount();
+      if (node.getSplit() == null && !node.isLeaf() && count >= minCount && count <= maxCount) {
+        weights.put(node.getId(), count);
+      }
+    }
+    return weights;
+  }
+
+  /**
+   * Chooses between the split search layouts.  The horizontal layout sends
+   * every frontier instance once, while the vertical layout sends each map
+   * task's histograms of every (node, field).  In the automatic mode, the
+   * layout expected to shuffle fewer bytes wins.  Speculative splits and
+   * streaming histograms are only supported by the vertical layout.
+   */
+  private static boolean isHorizontalSplitLayout(Configuration conf, Tree tree, HashMap<Integer, Node> nodeMap, long mapTaskCount) {
+    String layout = conf.get(Utils.SPLIT_LAYOUT_KEY, Utils.AUTO_SPLIT_LAYOUT);
+    if (layout.equals(Utils.VERTICAL_SPLIT_LAYOUT) || Utils.isStreamingNumericHistogram(conf)) {
+      return false;
+    }
+
+    TreeMap<Integer, Long> frontier = getFrontierWeights(nodeMap, Utils.DEFAULT_SUBTREE_FLOOR, Long.MAX_VALUE);
+    for (Integer nodeId : frontier.keySet()) {
+      if (nodeMap.get(nodeId).getCandidateSplits() != null) {
+        return false;
+      }
+    }
+
+    if (layout.equals(Utils.HORIZONTAL_SPLIT_LAYOUT)) {
+      return true;
+    }
+
+    int classCount = tree.getObjectiveField().getCategorySet().size();
+
+    // Node key plus a vint per category id or a marker and a double per number
+    long instanceBytes = 4;
+    for (Field field : tree.getFields()) {
+      instanceBytes += field.isCategorical() ? 2 : 9;
+    }
+
+    long horizontalBytes = 0;
+    long verticalBytes = 0;
+    for (Entry<Integer, Long> entry : frontier.entrySet()) {
+      Node node = nodeMap.get(entry.getKey());
+      long count = entry.getValue();
+      horizontalBytes += count * instanceBytes;
+
+      if (node.isDerived()) {
+        continue;
+      }
+
+      // A sibling that is derived gets a second copy of the node's histograms
+      Node sibling = node.getSibling();
+      int copies = sibling != null && sibling.isDerived() ? 2 : 1;
+      long countPerMap = (count + mapTaskCount - 1) / mapTaskCount;
+      for (Field field : tree.getFields()) {
+        if (field.getIndex() == tree.getObjectiveFieldIndex()) {
+          continue;
+        }
+
+        long binCount;
+        if (field.isCategorical()) {
+          binCount = field.getCategorySet().size();
+        } else {
+          binCount = Utils.getNumericBucketCount(conf, field, node.getTotalCount(), classCount);
+        }
+
+        // A key, then a vint bin and a vlong count per class for every bin
+        long histogramBytes = 28 + Math.min(binCount, countPerMap) * (1 + 2 * classCount);
+        verticalBytes += copies * mapTaskCount * histogramBytes;
+      }
+    }
+
+    return horizontalBytes < verticalBytes;
+  }
+
+  private static long estimateMapTaskCount(Configuration conf, Path[] inputPaths) throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    long inputBytes = 0;
+    for (Path inputPath : inputPaths) {
+      inputBytes += fs.getContentSummary(inputPath).getLength();
+    }
+    long splitSize = Utils.getSplitSize(conf);
+    return Math.max(1, (inputBytes + splitSize - 1) / splitSize);
+  }
+
+  /**
+   * Whether the filter left more than COMPACTION_FILES_KEY partition files,
+   * averaging under a split each, so later jobs would mostly read small
+   * files.  Compaction is off unless the limit is set.
+   */
+  private static boolean isFragmented(Configuration conf, HashMap<Integer, ArrayList<Path>> partitions) throws IOException {
+    int fileLimit = conf.getInt(Utils.COMPACTION_FILES_KEY, 0);
+    if (fileLimit <= 0) {
+      return false;
+    }
+
+    TreeSet<Path> files = new TreeSet<Path>();
+    for (ArrayList<Path> nodePartitions : partitions.values()) {
+      files.addAll(nodePartitions);
+    }
+    if (files.size() <= fileLimit) {
+      return false;
+    }
+
+    FileSystem fs = FileSystem.get(conf);
+    long totalBytes = 0;
+    for (Path file : files) {
+      totalBytes += fs.getFileStatus(file).getLen();
+    }
+    return totalBytes / files.size() < Utils.getSplitSize(conf);
+  }
+
+  /**
+   * The partition files holding the instances of the given nodes.  Nodes that
+   * split after the data was partitioned are found under their ancestors.
+   * Without a manifest, or for a node none of the partitions covers, the
+   * whole data directory is read.
+   */
+  static Path[] selectInputPaths(Path dataPath, HashMap<Integer, ArrayList<Path>> partitions,
+          HashMap<Integer, Node> nodeMap, Collection<Integer> nodeIds) {
+    if (partitions == null || nodeIds.isEmpty()) {
+      return new Path[]{dataPath};
+    }
+
+    TreeSet<Path> inputPaths = new TreeSet<Path>();
+    for (Integer nodeId : nodeIds) {
+      Node node = nodeMap.get(nodeId);
+      while (node != null && !partitions.containsKey(node.getId())) {
+        node = node.getParent();
+      }
+      if (node == null) {
+        return new Path[]{dataPath};
+      }
+      inputPaths.addAll(partitions.get(node.getId()));
+    }
+    return inputPaths.toArray(new Path[inputPaths.size()]);
+  }
+
+  /**
+   * The partition files each node's instances were written to, from the
+   * manifests of all of the filter's tasks.
+   */
+  static HashMap<Integer, ArrayList<Path>> readPartitionManifest(Configuration conf, Path inputPath) throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    HashMap<Integer, ArrayList<Path>> partitions = new HashMap<Integer, ArrayList<Path>>();
+    for (FileStatus fileStatus : fs.listStatus(inputPath)) {
+      if (fileStatus.getPath().getName().startsWith(Utils.PARTITION_MANIFEST_PREFIX)) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(fileStatus.getPath()), "UTF-8"));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            String[] tokens = line.split("\t");
+            if (tokens.length == 3) {
+              Integer nodeId = Integer.valueOf(tokens[0]);
+              ArrayList<Path> nodePartitions = partitions.get(nodeId);
+              if (nodePartitions == null) {
+                nodePartitions = new ArrayList<Path>();
+                partitions.put(nodeId, nodePartitions);
+              }
+              nodePartitions.add(new Path(inputPath, tokens[1]));
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      }
+    }
+    return partitions;
+  }
+
+  private static int countInputFields(Configuration conf, Path inputPath) throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    Path firstPath = inputPath;
+    if (fs.getFileStatus(inputPath).isDir()) {
+      firstPath = null;
+      for (FileStatus fileStatus : fs.listStatus(inputPath)) {
+        String name = fileStatus.getPath().getName();
+        if (!fileStatus.isDir() && !name.startsWith("_") && !name.startsWith(".")) {
+          firstPath = fileStatus.getPath();
+          break;
+        }
+      }
+      if (firstPath == null) {
+        return 1;
+      }
+    }
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(firstPath)));
+    try {
+      String line = reader.readLine();
+      return line == null ? 1 : line.split(",").length;
+    } finally {
+      reader.close();
+    }
+  }
+
   private static ArrayList<Node> readSubtrees(Configuration conf, Path inputPath, int objectiveFieldIndex) throws Exception {
     FileSystem fs = FileSystem.get(conf);
     FileStatus[] ls = fs.listStatus(inputPath);
@@ -347,8 +737,12 @@ public class TreeBuilder {
     return allFields;
   }
 
-  private static BuildResults readNewSplits(Tree tree, HashMap<Integer, Node> nodeMap, Configuration conf, Path inputPath) throws Exception {
+  static BuildResults readNewSplits(Tree tree, HashMap<Integer, Node> nodeMap, Configuration conf, Path inputPath) throws Exception {
     boolean grewTree = false;
+    boolean histogramSubtraction = Utils.isHistogramSubtraction(conf);
+    boolean streamingHistograms = Utils.isStreamingNumericHistogram(conf);
+    int speculativeSplits = conf.getInt(Utils.SPECULATIVE_SPLITS_KEY, 0);
+    float speculativeTolerance = conf.getFloat(Utils.SPECULATIVE_TOLERANCE_KEY, Utils.DEFAULT_SPECULATIVE_TOLERANCE);
     FileSystem fs = FileSystem.get(conf);
     FileStatus[] ls = fs.listStatus(inputPath);
 
@@ -367,63 +761,320 @@ public class TreeBuilder {
     }
 
     long newLeafInstanceCount = 0;
-    for (String line : allLines) {
-      if (line.isEmpty()) {
-        continue;
+    for (Entry<Integer, HashMap<Integer, ArrayList<String>>> entry : groupNodeSplits(allLines).entrySet()) {
+      // 0,0,2,3.2727272727272725,0.9182958340544894,grape@2;apple@0;peach@0,grape@0;apple@2;peach@2
+
+      Node node = nodeMap.get(entry.getKey());
+      HashMap<Integer, ArrayList<String>> branchSplits = entry.getValue();
+      ArrayList<String> fieldSplits = branchSplits.get(0);
+      markExhaustedFields(node, fieldSplits);
+
+      // Streaming histograms only estimate how a split divides a node's
+      // instances, so the node may hold estimated counts from its parent's
+      // split.  Both sides of any split together count them exactly.
+      if (streamingHistograms) {
+        node.setObjectiveCategoryCountMap(getBranchCategoryCounts(fieldSplits));
       }
 
-      // 0,2,3.2727272727272725,0.9182958340544894,grape@2;apple@0;peach@0,grape@0;apple@2;peach@2
-
+      String line = selectBestSplit(fieldSplits);
       String[] tokens = line.split(",");
-      int nodeId = Integer.valueOf(tokens[0]);
+      double informationGain = Double.valueOf(tokens[4]);
+
+      int candidate = selectCandidateSplit(node, branchSplits, informationGain, speculativeTolerance);
+
+      if (candidate >= 0) {
+        // The children's histograms were gathered in this pass, so split them too
+        Split split = node.getCandidateSplits().get(candidate);
+        ArrayList<String> trueChildSplits = branchSplits.get(Utils.getSpeculativeBranch(candidate, true));
+        ArrayList<String> falseChildSplits = branchSplits.get(Utils.getSpeculativeBranch(candidate, false));
+        TreeMap<String, Long> trueChildClassCounts = getBranchCategoryCounts(trueChildSplits);
+        TreeMap<String, Long> falseChildClassCounts = getBranchCategoryCounts(falseChildSplits);
+
+        Node[] children = addSplit(nodeMap, node, split, trueChildClassCounts, falseChildClassCounts);
+        ArrayList<ArrayList<String>> childSplits = new ArrayList<ArrayList<String>>();
+        childSplits.add(trueChildSplits);
+        childSplits.add(falseChildSplits);
+        grewTree = true;
 
-      Node node = nodeMap.get(nodeId);
+        for (int i = 0; i < children.length; i++) {
+          Node child = children[i];
+          if (child.getTotalCount() < Utils.DEFAULT_SUBTREE_FLOOR) {
+            newLeafInstanceCount += child.getTotalCount();
+            continue;
+          }
 
-      double informationGain = Double.valueOf(tokens[3]);
+          markExhaustedFields(child, childSplits.get(i));
+          String childLine = selectBestSplit(childSplits.get(i));
+          String[] childTokens = childLine.split(",");
+          if (Double.valueOf(childTokens[4]) <= 0.0) {
+            newLeafInstanceCount += child.getTotalCount();
+            child.setIsLeaf(true);
+            continue;
+          }
 
-      if (informationGain <= 0.0) {
+          // The child's histograms aren't kept, so its children can't be derived
+          newLeafInstanceCount += splitNode(tree, nodeMap, child, childTokens);
+          setCandidateSplits(tree, child, childSplits.get(i), childTokens, speculativeSplits);
+        }
+      } else if (informationGain <= 0.0) {
         if (!node.isLeaf()) {
           newLeafInstanceCount += node.getTotalCount();
           node.setIsLeaf(true);
         }
       } else {
-        int fieldId = Integer.valueOf(tokens[1]);
-        Field field = tree.getFields().get(fieldId);
+        newLeafInstanceCount += splitNode(tree, nodeMap, node, tokens);
+        grewTree = true;
 
-        String splitValueString = tokens[2];
-        Split split;
-        if (field.isCategorical()) {
-          split = new Split(fieldId, splitValueString);
-        } else {
-          double splitNumber = Double.valueOf(splitValueString);
-          split = new Split(fieldId, splitNumber);
+        if (histogramSubtraction) {
+          markDerivedChild(node.getTrueChild(), node.getFalseChild());
         }
+        setCandidateSplits(tree, node, fieldSplits, tokens, speculativeSplits);
 
-        TreeMap<String, Long> trueChildClassCounts = getCategoryCounts(tokens[4]);
-        TreeMap<String, Long> falseChildClassCounts = getCategoryCounts(tokens[5]);
+        System.out.println("ADAM - New Split: " + line);
+      }
 
-        Node trueChild = new Node(nodeMap.size(), node, trueChildClassCounts);
-        nodeMap.put(trueChild.getId(), trueChild);
-        Node falseChild = new Node(nodeMap.size(), node, falseChildClassCounts);
-        nodeMap.put(falseChild.getId(), falseChild);
+    }
 
-        node.addSplit(split, trueChild, falseChild);
-        grewTree = true;
+    return new BuildResults(grewTree, newLeafInstanceCount);
+  }
 
-        System.out.println("ADAM - New Split: " + line);
+  /**
+   * Records the fields the split search found exhausted at the node, which
+   * its children inherit when it splits.
+   */
+  private static void markExhaustedFields(Node node, ArrayList<String> fieldSplits) {
+    for (String line : fieldSplits) {
+      String[] tokens = line.split(",");
+      if (tokens.length > 7 && tokens[7].equals(Utils.EXHAUSTED_FIELD)) {
+        node.addExhaustedField(Integer.valueOf(tokens[2]));
+      }
+    }
+  }
 
-        if (trueChild.getTotalCount() < Utils.DEFAULT_SUBTREE_FLOOR) {
-          newLeafInstanceCount += trueChild.getTotalCount();
-        }
-        if (falseChild.getTotalCount() < Utils.DEFAULT_SUBTREE_FLOOR) {
-          newLeafInstanceCount += falseChild.getTotalCount();
+  /**
+   * Lets the next split search derive the larger child's histograms from the
+   * parent's minus the smaller child's.  That only works when the smaller
+   * child is itself searched, so it must stay above the subtree floor.
+   */
+  private static void markDerivedChild(Node trueChild, Node falseChild) {
+    Node smallerChild = trueChild;
+    Node largerChild = falseChild;
+    if (falseChild.getTotalCount() < trueChild.getTotalCount()) {
+      smallerChild = falseChild;
+      largerChild = trueChild;
+    }
+
+    if (smallerChild.getTotalCount() >= Utils.DEFAULT_SUBTREE_FLOOR) {
+      largerChild.setIsDerived(true);
+    }
+  }
+
+  /**
+   * Splits the node as described by a split job result, and returns how many
+   * instances its children leave to the subtree job.
+   */
+  private static long splitNode(Tree tree, HashMap<Integer, Node> nodeMap, Node node, String[] tokens) {
+    int fieldId = Integer.valueOf(tokens[2]);
+    Split split = createSplit(tree, fieldId, tokens[3]);
+
+    TreeMap<String, Long> trueChildClassCounts = getCategoryCounts(tokens[5]);
+    TreeMap<String, Long> falseChildClassCounts = getCategoryCounts(tokens[6]);
+
+    long leafInstanceCount = 0;
+    for (Node child : addSplit(nodeMap, node, split, trueChildClassCounts, falseChildClassCounts)) {
+      if (child.getTotalCount() < Utils.DEFAULT_SUBTREE_FLOOR) {
+        leafInstanceCount += child.getTotalCount();
+      }
+    }
+    return leafInstanceCount;
+  }
+
+  private static Node[] addSplit(HashMap<Integer, Node> nodeMap, Node node, Split split,
+          TreeMap<String, Long> trueChildClassCounts, TreeMap<String, Long> falseChildClassCounts) {
+    Node trueChild = new Node(nodeMap.size(), node, trueChildClassCounts);
+    nodeMap.put(trueChild.getId(), trueChild);
+    Node falseChild = new Node(nodeMap.size(), node, falseChildClassCounts);
+    nodeMap.put(falseChild.getId(), falseChild);
+
+    node.addSplit(split, trueChild, falseChild);
+    return new Node[]{trueChild, falseChild};
+  }
+
+  /**
+   * Categorical splits are reported by category id.
+   */
+  private static Split createSplit(Tree tree, int fieldId, String splitValueString) {
+    Field field = tree.getFields().get(fieldId);
+    if (field.isCategorical()) {
+      int categoryId = Integer.valueOf(splitValueString);
+      return new Split(fieldId, field.getCategory(categoryId), categoryId);
+    }
+    return new Split(fieldId, Double.valueOf(splitValueString));
+  }
+
+  /**
+   * Gives the node's children (the ones big enough for another split search)
+   * the runner up splits of the node, the best splits of other fields, as the
+   * candidates to gather speculative histograms for.  A derived child gets
+   * none: gathering them would scan its instances after all, which its
+   * histograms by subtraction were meant to avoid, and on its parent's grid
+   * rather than its own.  Call this after the derived child is marked.
+   */
+  private static void setCandidateSplits(Tree tree, Node node, ArrayList<String> fieldSplits,
+          String[] bestTokens, int speculativeSplits) {
+    if (speculativeSplits <= 0) {
+      return;
+    }
+
+    ArrayList<String[]> runnerUps = new ArrayList<String[]>();
+    for (String line : fieldSplits) {
+      String[] tokens = line.split(",");
+      if (!tokens[2].equals(bestTokens[2]) && Double.valueOf(tokens[4]) > 0.0) {
+        runnerUps.add(tokens);
+      }
+    }
+
+    Collections.sort(runnerUps, new Comparator<String[]>() {
+
+      public int compare(String[] a, String[] b) {
+        return Double.compare(Double.valueOf(b[4]), Double.valueOf(a[4]));
+      }
+    });
+
+    ArrayList<Split> candidateSplits = new ArrayList<Split>();
+    for (int i = 0; i < runnerUps.size() && i < speculativeSplits; i++) {
+      String[] tokens = runnerUps.get(i);
+      candidateSplits.add(createSplit(tree, Integer.valueOf(tokens[2]), tokens[3]));
+    }
+
+    if (!candidateSplits.isEmpty()) {
+      for (Node child : new Node[]{node.getTrueChild(), node.getFalseChild()}) {
+        if (child.getTotalCount() >= Utils.DEFAULT_SUBTREE_FLOOR && !child.isDerived()) {
+          child.setCandidateSplits(candidateSplits);
         }
+      }
+    }
+  }
+
+  /**
+   * Finds the node's best candidate split from the class counts of the
+   * children gathered for it.  A candidate is used if it is nearly as good
+   * as the node's best split, within the relative tolerance.  Returns -1 if
+   * none is.
+   */
+  private static int selectCandidateSplit(Node node, HashMap<Integer, ArrayList<String>> branchSplits,
+          double bestInformationGain, float tolerance) {
+    ArrayList<Split> candidateSplits = node.getCandidateSplits();
+    if (candidateSplits == null) {
+      return -1;
+    }
+
+    long[] nodeCounts = toCounts(node.getObjectiveCategoryCountMap());
 
+    int bestCandidate = -1;
+    double bestCandidateGain = -Double.MAX_VALUE;
+    for (int candidate = 0; candidate < candidateSplits.size(); candidate++) {
+      ArrayList<String> trueChildSplits = branchSplits.get(Utils.getSpeculativeBranch(candidate, true));
+      ArrayList<String> falseChildSplits = branchSplits.get(Utils.getSpeculativeBranch(candidate, false));
+      if (trueChildSplits == null || falseChildSplits == null) {
+        continue;
+      }
+
+      long[] trueCounts = toCounts(getBranchCategoryCounts(trueChildSplits));
+      long[] falseCounts = toCounts(getBranchCategoryCounts(falseChildSplits));
+      if (Utils.sumCounts(trueCounts) <= Utils.DEFAULT_SPLIT_FLOOR
+              || Utils.sumCounts(falseCounts) <= Utils.DEFAULT_SPLIT_FLOOR) {
+        continue;
       }
 
+      double informationGain = Utils.findInformationGain(nodeCounts, trueCounts, falseCounts);
+      if (informationGain > bestCandidateGain) {
+        bestCandidateGain = informationGain;
+        bestCandidate = candidate;
+      }
     }
 
-    return new BuildResults(grewTree, newLeafInstanceCount);
+    if (bestCandidate < 0 || bestCandidateGain <= 0.0
+            || bestCandidateGain < bestInformationGain - tolerance * Math.abs(bestInformationGain)) {
+      return -1;
+    }
+    return bestCandidate;
+  }
+
+  /**
+   * Groups the best split of every (node, branch, field) by node id and then
+   * by branch, keeping the order they were read in.
+   */
+  private static TreeMap<Integer, HashMap<Integer, ArrayList<String>>> groupNodeSplits(ArrayList<String> lines) {
+    TreeMap<Integer, HashMap<Integer, ArrayList<String>>> nodeSplits = new TreeMap<Integer, HashMap<Integer, ArrayList<String>>>();
+
+    for (String line : lines) {
+      if (line.isEmpty()) {
+        continue;
+      }
+
+      String[] tokens = line.split(",", 3);
+      int nodeId = Integer.valueOf(tokens[0]);
+      int branch = Integer.valueOf(tokens[1]);
+
+      HashMap<Integer, ArrayList<String>> branchSplits = nodeSplits.get(nodeId);
+      if (branchSplits == null) {
+        branchSplits = new HashMap<Integer, ArrayList<String>>();
+        nodeSplits.put(nodeId, branchSplits);
+      }
+      ArrayList<String> fieldSplits = branchSplits.get(branch);
+      if (fieldSplits == null) {
+        fieldSplits = new ArrayList<String>();
+        branchSplits.put(branch, fieldSplits);
+      }
+      fieldSplits.add(line);
+    }
+
+    return nodeSplits;
+  }
+
+  /**
+   * Picks the best of a node's field splits, keeping the first of equally
+   * good ones.
+   */
+  private static String selectBestSplit(ArrayList<String> fieldSplits) {
+    String bestSplit = null;
+    double maxInformationGain = 0;
+    for (String line : fieldSplits) {
+      double informationGain = Double.valueOf(line.split(",")[4]);
+      if (bestSplit == null || informationGain > maxInformationGain) {
+        maxInformationGain = informationGain;
+        bestSplit = line;
+      }
+    }
+    return bestSplit;
+  }
+
+  /**
+   * The class counts of a (speculative) child, which every one of its field
+   * splits divides between its two sides.
+   */
+  private static TreeMap<String, Long> getBranchCategoryCounts(ArrayList<String> fieldSplits) {
+    String[] tokens = fieldSplits.get(0).split(",");
+    return sumCategoryCounts(getCategoryCounts(tokens[5]), getCategoryCounts(tokens[6]));
+  }
+
+  private static TreeMap<String, Long> sumCategoryCounts(TreeMap<String, Long> a, TreeMap<String, Long> b) {
+    TreeMap<String, Long> counts = new TreeMap<String, Long>(a);
+    for (Entry<String, Long> entry : b.entrySet()) {
+      Long count = counts.get(entry.getKey());
+      counts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+    }
+    return counts;
+  }
+
+  private static long[] toCounts(TreeMap<String, Long> categoryCounts) {
+    long[] counts = new long[categoryCounts.size()];
+    int i = 0;
+    for (Long count : categoryCounts.values()) {
+      counts[i++] = count;
+    }
+    return counts;
   }
 
   private static TreeMap<String, Long> getCategoryCounts(String categoryCountString) {
@@ -0,0 +1,143 @@
+package hadooptree;
+
+import hadooptree.tree.Tree;
+import hadooptree.tree.TreeCodec;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Keeps the tree the tasks load for the life of the JVM, so tasks that reuse
+ * a JVM share one decoded tree rather than each decoding their own.  The
+ * tree is keyed by its file's path and modification time, and the driver
+ * writes every version of the tree to a new path, so a cached tree can't be
+ * stale even where modification times are coarse.  Only the latest tree is
+ * kept.  A tree on the local disk, such as the task's distributed cache
+ * copy, is decoded from a read-only memory map.  Tasks only read the tree,
+ * which is what makes sharing it safe.
+ */
+public class TreeCache {
+
+  private static String cachedKey;
+  private static Tree cachedTree;
+
+  public static synchronized Tree get(Configuration conf) throws Exception {
+    File localFile = findLocalFile(conf);
+
+    Path path;
+    FileSystem fs;
+    if (localFile != null) {
+      fs = FileSystem.getLocal(conf);
+      path = new Path(localFile.getPath());
+    } else {
+      URI[] files = DistributedCache.getCacheFiles(conf);
+      path = new Path(files[0].toString());
+      fs = path.getFileSystem(conf);
+    }
+
+    FileStatus status = fs.getFileStatus(path);
+    String key = fs.makeQualified(path) + "@" + status.getModificationTime() + "+" + status.getLen();
+    if (key.equals(cachedKey)) {
+      return cachedTree;
+    }
+
+    Tree tree = null;
+    if (localFile != null) {
+      tree = readMapped(localFile);
+    }
+    if (tree == null) {
+      tree = Utils.readTree(fs, path);
+    }
+    // Builds the node lookup, the compiled tree and the range table now,
+    // rather than in whichever task asks first
+    tree.getNode(0);
+    tree.getCompiledTree();
+    tree.getRangeMin(0, 0);
+
+    cachedKey = key;
+    cachedTree = tree;
+    return tree;
+  }
+
+  /**
+   * The task's localized copy of the tree, or the tree itself when it is on
+   * the local file system.
+   */
+  private static File findLocalFile(Configuration conf) throws IOException {
+    Path[] localFiles = DistributedCache.getLocalCacheFiles(conf);
+    if (localFiles != null && localFiles.length > 0) {
+      return new File(localFiles[0].toUri().getPath());
+    }
+
+    URI[] files = DistributedCache.getCacheFiles(conf);
+    Path path = new Path(files[0].toString());
+    FileSystem fs = path.getFileSystem(conf);
+    if (fs instanceof LocalFileSystem) {
+      return ((LocalFileSystem) fs).pathToFile(path);
+    }
+    return null;
+  }
+
+  /**
+   * Decodes a binary tree from a memory map of the file, or returns null for
+   * a tree in another format.
+   */
+  private static Tree readMapped(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      byte[] header = new byte[Math.min(4, buffer.remaining())];
+      buffer.duplicate().get(header);
+      if (!TreeCodec.isBinaryTree(header)) {
+        return null;
+      }
+
+      return TreeCodec.read(new DataInputStream(new ByteBufferInputStream(buffer)));
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      length = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, length);
+      return length;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -2,20 +2,23 @@ package hadooptree;
 
 import hadooptree.tree.Field;
 import hadooptree.tree.Tree;
-import java.io.ByteArrayOutputStream;
+import hadooptree.tree.TreeCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
-import java.net.URI;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.filecache.DistributedCache;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
 import org.jdom.Element;
 import org.jdom.input.SAXBuilder;
+import org.jdom.output.XMLOutputter;
 
 public class Utils {
 
@@ -26,6 +29,43 @@ public class Utils {
   public static final int DEFAULT_SPLIT_FLOOR = 100;
   public static final int DEFAULT_SUBTREE_FLOOR = 15000;
   public static final double SUBTREE_AND_LEAF_RATIO = 0.5d;
+  public static final int DEFAULT_MAP_HISTOGRAM_ENTRIES = 500000;
+  public static final String MAP_HISTOGRAM_ENTRIES_KEY = "hadooptree.map.histogram.entries";
+  public static final String HISTOGRAM_SUBTRACTION_KEY = "hadooptree.histogram.subtraction";
+  public static final String PARENT_HISTOGRAMS_KEY = "hadooptree.histograms.parent";
+  public static final String HISTOGRAMS_DIRECTORY = "histograms";
+  public static final String NUMERIC_HISTOGRAM_KEY = "hadooptree.numeric.histogram";
+  public static final String STREAMING_NUMERIC_HISTOGRAM = "streaming";
+  public static final String STREAMING_BINS_KEY = "hadooptree.streaming.bins";
+  public static final int DEFAULT_STREAMING_BINS = 128;
+  public static final String REDUCE_SLOTS_KEY = "hadooptree.reduce.slots";
+  public static final String RECORDS_PER_REDUCER_KEY = "hadooptree.reduce.records";
+  public static final long DEFAULT_RECORDS_PER_REDUCER = 1000000L;
+  public static final String NUMERIC_SPLITS_KEY = "hadooptree.numeric.splits";
+  public static final String DISTINCT_VALUE_LIMIT_KEY = "hadooptree.distinct.values";
+  public static final String BUCKET_INSTANCES_KEY = "hadooptree.bucket.instances";
+  public static final int DEFAULT_BUCKET_INSTANCES = 4;
+  public static final int MIN_NUMERIC_BUCKETS = 16;
+  public static final String HISTOGRAM_MEMORY_KEY = "hadooptree.histogram.memory";
+  public static final long DEFAULT_HISTOGRAM_MEMORY = 8L * 1024 * 1024;
+  public static final String SPLIT_LAYOUT_KEY = "hadooptree.split.layout";
+  public static final String AUTO_SPLIT_LAYOUT = "auto";
+  public static final String VERTICAL_SPLIT_LAYOUT = "vertical";
+  public static final String HORIZONTAL_SPLIT_LAYOUT = "horizontal";
+  public static final String SPECULATIVE_SPLITS_KEY = "hadooptree.speculative.splits";
+  public static final String SPECULATIVE_TOLERANCE_KEY = "hadooptree.speculative.tolerance";
+  public static final float DEFAULT_SPECULATIVE_TOLERANCE = 0.05f;
+  public static final String GLOBAL_BINS_KEY = "hadooptree.global.bins";
+  public static final int MAX_GLOBAL_BINS = 65536;
+  public static final String PARTITION_RECORDS_KEY = "hadooptree.partition.records";
+  public static final long DEFAULT_PARTITION_RECORDS = 1000000L;
+  public static final String PARTITION_MANIFEST_PREFIX = "_manifest-";
+  public static final String EXHAUSTED_FIELD = "exhausted";
+  public static final String TREE_XML_KEY = "hadooptree.tree.xml";
+  public static final String SPLIT_SIZE_KEY = "hadooptree.split.size";
+  public static final String COMPACTION_FILES_KEY = "hadooptree.compaction.files";
+  public static final String COMPACTION_SIZE_KEY = "hadooptree.compaction.size";
+  public static final long DEFAULT_COMPACTION_SIZE = 1024L * 1024 * 1024;
 
   public static ArrayList<Object> convertInstanceStringToArrayList(String instanceString, ArrayList<Field> fields) throws Exception {
     ArrayList<Object> values = new ArrayList<Object>();
@@ -48,81 +88,234 @@ public class Utils {
     return values;
   }
 
+  /**
+   * Category ids by the categories' UTF-8 bytes, so tokens can be looked up
+   * without decoding them.  Numeric fields get null.
+   */
+  public static ArrayList<HashMap<Text, Integer>> createCategoryIdMaps(Tree tree) {
+    ArrayList<HashMap<Text, Integer>> categoryIdMaps = new ArrayList<HashMap<Text, Integer>>();
+    for (Field field : tree.getFields()) {
+      HashMap<Text, Integer> categoryIdMap = null;
+      if (field.isCategorical()) {
+        categoryIdMap = new HashMap<Text, Integer>();
+        ArrayList<String> categories = field.getCategoryList();
+        for (int i = 0; i < categories.size(); i++) {
+          categoryIdMap.put(new Text(categories.get(i)), i);
+        }
+      }
+      categoryIdMaps.add(categoryIdMap);
+    }
+    return categoryIdMaps;
+  }
+
+  /**
+   * The tree the job ships to its tasks, shared by every task in the JVM.
+   * Tasks must not change it.
+   */
   public static Tree loadTree(Configuration conf) throws Exception {
-    URI[] files = DistributedCache.getCacheFiles(conf);
+    return TreeCache.get(conf);
+  }
 
-    Path path = new Path(files[0].toString());
+  /**
+   * Reads a tree in the binary format, or an XML one, which is told apart by
+   * its first bytes.
+   */
+  public static Tree readTree(FileSystem fs, Path path) throws Exception {
+    BufferedInputStream in = new BufferedInputStream(fs.open(path));
+    try {
+      byte[] header = new byte[4];
+      in.mark(header.length);
+      int length = in.read(header);
+      in.reset();
 
-    FileSystem fs = FileSystem.get(conf);
-    FSDataInputStream in = fs.open(path);
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    IOUtils.copyBytes(in, out, conf);
-    in.close();
-    out.close();
-    String[] lines = out.toString().split("\n");
+      if (length == header.length && TreeCodec.isBinaryTree(header)) {
+        return TreeCodec.read(new DataInputStream(in));
+      }
 
-    StringBuilder stringBuilder = new StringBuilder();
-    for (String line : lines) {
-      stringBuilder.append(line);
+      Element treeElement = new SAXBuilder().build(in).getRootElement();
+      return Tree.fromElement(treeElement);
+    } finally {
+      in.close();
     }
+  }
 
-    String treeXml = stringBuilder.toString();
+  /**
+   * Writes the tree in the binary format to a temporary file next to the
+   * path, then renames it into place, so no task ever reads half a tree.
+   */
+  public static void writeTree(Tree tree, FileSystem fs, Path path) throws IOException {
+    writeTree(tree, fs, path, false);
+  }
 
-    SAXBuilder saxBuilder = new SAXBuilder();
+  /**
+   * Writes the routing snapshot of the tree the jobs load, the same way.
+   */
+  public static void writeTreeSnapshot(Tree tree, FileSystem fs, Path path) throws IOException {
+    writeTree(tree, fs, path, true);
+  }
 
-    Reader xmlIn = new StringReader(treeXml);
+  private static void writeTree(Tree tree, FileSystem fs, Path path, boolean isSnapshot) throws IOException {
+    Path tempPath = new Path(path.getParent(), "_" + path.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(tempPath, true)));
+    try {
+      if (isSnapshot) {
+        TreeCodec.writeSnapshot(tree, out);
+      } else {
+        TreeCodec.write(tree, out);
+      }
+    } finally {
+      out.close();
+    }
+    replaceFile(fs, tempPath, path);
+  }
 
-    Tree tree = null;
+  /**
+   * Exports the tree as XML, streamed straight to the file system.
+   */
+  public static void writeTreeXml(Tree tree, FileSystem fs, Path path) throws IOException {
+    Path tempPath = new Path(path.getParent(), "_" + path.getName() + ".tmp");
+    OutputStream out = new BufferedOutputStream(fs.create(tempPath, true));
     try {
-      Element treeElement = saxBuilder.build(xmlIn).getRootElement();
-      tree = Tree.fromElement(treeElement);
-    } catch (Exception e) {
-      throw new IOException("TreeXml: " + treeXml, e);
+      new XMLOutputter().output(tree.toElement(), out);
+    } finally {
+      out.close();
+    }
+    replaceFile(fs, tempPath, path);
+  }
+
+  /**
+   * Renames over an existing file.  HDFS won't rename onto one, so it is
+   * deleted first, which only leaves a gap between jobs.
+   */
+  private static void replaceFile(FileSystem fs, Path source, Path target) throws IOException {
+    if (fs.exists(target)) {
+      fs.delete(target, false);
+    }
+    if (!fs.rename(source, target)) {
+      throw new IOException("Could not rename " + source + " to " + target);
+    }
+  }
+
+  /**
+   * Whether numeric fields are summarized with streaming histograms instead
+   * of equal width buckets over the node's range.
+   */
+  public static boolean isStreamingNumericHistogram(Configuration conf) {
+    return STREAMING_NUMERIC_HISTOGRAM.equals(conf.get(NUMERIC_HISTOGRAM_KEY));
+  }
+
+  /**
+   * The number of input bytes a map task of the training jobs reads, a block
+   * unless configured.
+   */
+  public static long getSplitSize(Configuration conf) {
+    return conf.getLong(SPLIT_SIZE_KEY, conf.getLong("dfs.block.size", 64L * 1024 * 1024));
+  }
+
+  /**
+   * Streaming histograms can be merged but not subtracted, so subtraction is
+   * only used with bucketed numeric histograms.
+   */
+  public static boolean isHistogramSubtraction(Configuration conf) {
+    return conf.getBoolean(HISTOGRAM_SUBTRACTION_KEY, true) && !isStreamingNumericHistogram(conf);
+  }
+
+  /**
+   * The key branch holding the histograms of a node's true or false child
+   * under one of its candidate splits.  Branch zero is the node itself.
+   */
+  public static int getSpeculativeBranch(int candidate, boolean isTrueChild) {
+    return 2 * candidate + (isTrueChild ? 1 : 2);
+  }
+
+  /**
+   * The number of bins in a node's histogram of a numeric field.  Globally
+   * binned fields keep their bins, and fields with few distinct values get a
+   * bin per value.  Otherwise the node's range is cut into enough buckets to
+   * hold about BUCKET_INSTANCES_KEY instances each, limited by the configured
+   * resolution and by the memory a dense histogram over the objective classes
+   * may use.
+   */
+  public static int getNumericBucketCount(Configuration conf, Field field, long instanceCount, int classCount) {
+    if (field.hasGlobalBins()) {
+      return field.getBinCeilings().length;
+    }
+    if (field.hasDistinctValues()) {
+      return field.getDistinctValues().length;
+    }
+
+    int maxBuckets = conf.getInt(NUMERIC_SPLITS_KEY, DEFAULT_NUMERIC_SPLITS) + 1;
+    long memoryBuckets = conf.getLong(HISTOGRAM_MEMORY_KEY, DEFAULT_HISTOGRAM_MEMORY) / (8L * Math.max(1, classCount));
+    long countBuckets = instanceCount / conf.getInt(BUCKET_INSTANCES_KEY, DEFAULT_BUCKET_INSTANCES);
+
+    long bucketCount = Math.max(MIN_NUMERIC_BUCKETS, countBuckets);
+    bucketCount = Math.min(bucketCount, Math.min(maxBuckets, memoryBuckets));
+    return (int) Math.max(2, bucketCount);
+  }
+
+  public static double getBucketCeiling(double[] range, double bucketSize, int bucket) {
+    return range[0] + ((bucket + 1) * bucketSize);
+  }
+
+  /**
+   * Finds the equal width bucket of the range that holds the value.  A value
+   * belongs to the first bucket whose ceiling is greater or equal to it.
+   * Returns -1 if the value lies above the last bucket ceiling.
+   */
+  public static int findBucket(double value, double[] range, int bucketCount) {
+    return findBucket(value, range[0], range[1], bucketCount);
+  }
+
+  public static int findBucket(double value, double rangeMin, double rangeMax, int bucketCount) {
+    double bucketSize = (rangeMax - rangeMin) / (double) bucketCount;
+    if (!(bucketSize > 0)) {
+      return value <= rangeMin ? 0 : -1;
+    }
+
+    double position = Math.ceil((value - rangeMin) / bucketSize) - 1;
+    int bucket = (int) Math.max(0, Math.min(bucketCount, position));
+
+    // Correct for rounding so we agree with the ceilings used by the reducers
+    while (bucket > 0 && rangeMin + (bucket * bucketSize) >= value) {
+      bucket--;
+    }
+    while (bucket < bucketCount && rangeMin + ((bucket + 1) * bucketSize) < value) {
+      bucket++;
     }
 
-    return tree;
+    return bucket < bucketCount ? bucket : -1;
   }
 
-  public static String printCounts(ArrayList<String> categories, Long[] counts) {
+  public static String printCounts(ArrayList<String> categories, long[] counts) {
     StringBuilder builder = new StringBuilder();
     for (int i = 0; i < counts.length; i++) {
+      if (i > 0) {
+        builder.append(";");
+      }
       builder.append(categories.get(i));
       builder.append("@");
       builder.append(counts[i]);
-      builder.append(";");
     }
-
-    String resultString = builder.toString();
-    resultString = resultString.substring(0, resultString.length() - 1);
-
-    return resultString;
+    return builder.toString();
   }
 
-  public static long sumCounts(Long[] counts) {
+  public static long sumCounts(long[] counts) {
     long count = 0;
-    for (Long splitCount : counts) {
+    for (long splitCount : counts) {
       count += splitCount;
     }
     return count;
   }
 
-  public static Long[] addCounts(Long[] targetCounts, Long[] sourceCounts) {
-    for (int i = 0; i < targetCounts.length; i++) {
-      targetCounts[i] += sourceCounts[i];
-    }
-
-    return targetCounts;
-  }
-
-  public static Long[] subtractCounts(Long[] targetCounts, Long[] sourceCounts) {
-    for (int i = 0; i < targetCounts.length; i++) {
-      targetCounts[i] -= sourceCounts[i];
+  public static long sumCounts(Collection<Long> counts) {
+    long count = 0;
+    for (Long splitCount : counts) {
+      count += splitCount;
     }
-
-    return targetCounts;
+    return count;
   }
 
-  public static double entropy(Long[] counts, long instanceCount) {
+  public static double entropy(long[] counts, long instanceCount) {
     if (instanceCount == 0) {
       return 0.0;
     }
@@ -130,7 +323,7 @@ public class Utils {
     double entropy = 0.0;
     double invDataSize = 1.0 / instanceCount;
 
-    for (Long count : counts) {
+    for (long count : counts) {
       if (count == 0) {
         continue; // otherwise we get a NaN
       }
@@ -141,7 +334,7 @@ public class Utils {
     return entropy;
   }
 
-  public static double findInformationGain(Long[] originalCounts, Long[] trueCounts, Long[] falseCounts) {
+  public static double findInformationGain(long[] originalCounts, long[] trueCounts, long[] falseCounts) {
     long originalTotalCount = Utils.sumCounts(originalCounts);
     double invDataSize = 1.0 / originalTotalCount;
     double originalEntropy = Utils.entropy(originalCounts, originalTotalCount);
@@ -155,4 +348,5 @@ public class Utils {
 
     return informationGain;
   }
+
 }
@@ -0,0 +1,93 @@
+package hadooptree.io;
+
+import java.io.IOException;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+
+/**
+ * Reads the chunks of a CombinedInstanceSplit in order, with a sequence file
+ * reader per chunk.
+ */
+public class CombinedInstanceRecordReader extends RecordReader<NullWritable, InstanceWritable> {
+
+  private CombinedInstanceSplit split;
+  private TaskAttemptContext context;
+  private SequenceFileRecordReader<NullWritable, InstanceWritable> reader;
+  private int chunk;
+  private long chunkLength;
+  private long completedBytes;
+  private long totalBytes;
+
+  @Override
+  public void initialize(InputSplit inputSplit, TaskAttemptContext context) throws IOException, InterruptedException {
+    this.split = (CombinedInstanceSplit) inputSplit;
+    this.context = context;
+    this.chunk = -1;
+    this.chunkLength = 0;
+    this.completedBytes = 0;
+    this.totalBytes = split.getLength();
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    while (reader == null || !reader.nextKeyValue()) {
+      if (!nextChunk()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean nextChunk() throws IOException, InterruptedException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+      completedBytes += chunkLength;
+    }
+
+    chunk++;
+    if (chunk >= split.getChunkCount()) {
+      return false;
+    }
+
+    FileSplit fileSplit = split.getChunk(chunk);
+    chunkLength = fileSplit.getLength();
+    reader = new SequenceFileRecordReader<NullWritable, InstanceWritable>();
+    reader.initialize(fileSplit, context);
+    return true;
+  }
+
+  @Override
+  public NullWritable getCurrentKey() throws IOException, InterruptedException {
+    return reader.getCurrentKey();
+  }
+
+  @Override
+  public InstanceWritable getCurrentValue() throws IOException, InterruptedException {
+    return reader.getCurrentValue();
+  }
+
+  @Override
+  public float getProgress() throws IOException {
+    if (totalBytes == 0) {
+      return 1f;
+    }
+    float readBytes = completedBytes;
+    if (reader != null) {
+      readBytes += reader.getProgress() * chunkLength;
+    }
+    return Math.min(1f, readBytes / totalBytes);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+  }
+}
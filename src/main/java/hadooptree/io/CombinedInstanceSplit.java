@@ -0,0 +1,99 @@
+package hadooptree.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * A map task's input made of several file chunks, read one after another.
+ * Like a FileSplit, the hosts only serve scheduling and are not written.
+ */
+public class CombinedInstanceSplit extends InputSplit implements Writable {
+
+  private Path[] paths;
+  private long[] starts;
+  private long[] lengths;
+  private String[] hosts;
+
+  public CombinedInstanceSplit() {
+  }
+
+  public CombinedInstanceSplit(List<FileSplit> fileSplits, String[] hosts) {
+    int count = fileSplits.size();
+    paths = new Path[count];
+    starts = new long[count];
+    lengths = new long[count];
+    for (int i = 0; i < count; i++) {
+      FileSplit fileSplit = fileSplits.get(i);
+      paths[i] = fileSplit.getPath();
+      starts[i] = fileSplit.getStart();
+      lengths[i] = fileSplit.getLength();
+    }
+    this.hosts = hosts;
+  }
+
+  public int getChunkCount() {
+    return paths.length;
+  }
+
+  public FileSplit getChunk(int index) {
+    return new FileSplit(paths[index], starts[index], lengths[index], null);
+  }
+
+  @Override
+  public long getLength() {
+    long length = 0;
+    for (long chunkLength : lengths) {
+      length += chunkLength;
+    }
+    return length;
+  }
+
+  @Override
+  public String[] getLocations() {
+    return hosts == null ? new String[0] : hosts;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, paths.length);
+    for (int i = 0; i < paths.length; i++) {
+      Text.writeString(out, paths[i].toString());
+      WritableUtils.writeVLong(out, starts[i]);
+      WritableUtils.writeVLong(out, lengths[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int count = WritableUtils.readVInt(in);
+    paths = new Path[count];
+    starts = new long[count];
+    lengths = new long[count];
+    for (int i = 0; i < count; i++) {
+      paths[i] = new Path(Text.readString(in));
+      starts[i] = WritableUtils.readVLong(in);
+      lengths[i] = WritableUtils.readVLong(in);
+    }
+    hosts = null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < paths.length; i++) {
+      if (i > 0) {
+        builder.append(",");
+      }
+      builder.append(paths[i]).append(":").append(starts[i]).append("+").append(lengths[i]);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,151 @@
+package hadooptree.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import hadooptree.StreamingHistogram;
+import java.util.Arrays;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A sparse class histogram: for every non-empty bin (a numeric bucket or a
+ * category id) the count of each objective class.  Numeric fields may instead
+ * be summarized by one streaming histogram per objective class.  Instances are
+ * meant to be reused, so the backing arrays only grow.
+ */
+public class HistogramWritable implements Writable {
+
+  private int classCount;
+  private int size;
+  private int[] bins;
+  private long[] counts;
+  private StreamingHistogram[] sketches;
+  private boolean hasSketches;
+
+  public HistogramWritable() {
+    bins = new int[16];
+    counts = new long[16];
+  }
+
+  public void clear(int classCount) {
+    this.classCount = classCount;
+    this.size = 0;
+    this.hasSketches = false;
+  }
+
+  public void setSketches(StreamingHistogram[] sketches) {
+    this.sketches = sketches;
+    this.hasSketches = true;
+  }
+
+  public boolean hasSketches() {
+    return hasSketches;
+  }
+
+  public StreamingHistogram getSketch(int classId) {
+    return sketches[classId];
+  }
+
+  public void add(int bin, long[] binCounts) {
+    add(bin, binCounts, 0);
+  }
+
+  public void add(int bin, long[] binCounts, int offset) {
+    ensureCapacity(size + 1);
+    bins[size] = bin;
+    System.arraycopy(binCounts, offset, counts, size * classCount, classCount);
+    size++;
+  }
+
+  public int getClassCount() {
+    return classCount;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getBin(int entry) {
+    return bins[entry];
+  }
+
+  public long getCount(int entry, int classId) {
+    return counts[entry * classCount + classId];
+  }
+
+  private void ensureCapacity(int entries) {
+    if (bins.length < entries) {
+      bins = Arrays.copyOf(bins, Math.max(entries, bins.length * 2));
+    }
+    if (counts.length < entries * classCount) {
+      counts = Arrays.copyOf(counts, Math.max(entries * classCount, counts.length * 2));
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, classCount);
+    WritableUtils.writeVInt(out, size);
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVInt(out, bins[i]);
+      for (int j = 0; j < classCount; j++) {
+        WritableUtils.writeVLong(out, counts[i * classCount + j]);
+      }
+    }
+
+    out.writeBoolean(hasSketches);
+    if (hasSketches) {
+      for (int j = 0; j < classCount; j++) {
+        sketches[j].write(out);
+      }
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    classCount = WritableUtils.readVInt(in);
+    size = 0;
+    int entries = WritableUtils.readVInt(in);
+    ensureCapacity(entries);
+    for (int i = 0; i < entries; i++) {
+      bins[i] = WritableUtils.readVInt(in);
+      for (int j = 0; j < classCount; j++) {
+        counts[i * classCount + j] = WritableUtils.readVLong(in);
+      }
+    }
+    size = entries;
+
+    hasSketches = in.readBoolean();
+    if (hasSketches) {
+      if (sketches == null || sketches.length < classCount) {
+        sketches = new StreamingHistogram[classCount];
+        for (int j = 0; j < classCount; j++) {
+          sketches[j] = new StreamingHistogram();
+        }
+      }
+      for (int j = 0; j < classCount; j++) {
+        sketches[j].readFields(in);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        builder.append(";");
+      }
+      builder.append(bins[i]);
+      builder.append("@");
+      for (int j = 0; j < classCount; j++) {
+        if (j > 0) {
+          builder.append(":");
+        }
+        builder.append(counts[i * classCount + j]);
+      }
+    }
+    return builder.toString();
+  }
+}
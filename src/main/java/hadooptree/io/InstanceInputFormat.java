@@ -0,0 +1,86 @@
+package hadooptree.io;
+
+import hadooptree.Utils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+/**
+ * Reads the prepared training data: sequence files of decoded instances, so
+ * the training jobs' mappers never parse text.  The filter leaves many small
+ * partition files behind, so file splits are packed together, in order, into
+ * splits of about SPLIT_SIZE_KEY bytes rather than giving each file its own
+ * map task.
+ */
+public class InstanceInputFormat extends SequenceFileInputFormat<NullWritable, InstanceWritable> {
+
+  private static final int MAX_SPLIT_HOSTS = 3;
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    long splitSize = Utils.getSplitSize(job.getConfiguration());
+
+    List<InputSplit> splits = new ArrayList<InputSplit>();
+    ArrayList<FileSplit> chunks = new ArrayList<FileSplit>();
+    long chunksLength = 0;
+    for (InputSplit inputSplit : super.getSplits(job)) {
+      FileSplit fileSplit = (FileSplit) inputSplit;
+      if (!chunks.isEmpty() && chunksLength + fileSplit.getLength() > splitSize) {
+        splits.add(combine(chunks));
+        chunks.clear();
+        chunksLength = 0;
+      }
+      chunks.add(fileSplit);
+      chunksLength += fileSplit.getLength();
+    }
+    if (!chunks.isEmpty()) {
+      splits.add(combine(chunks));
+    }
+    return splits;
+  }
+
+  @Override
+  public RecordReader<NullWritable, InstanceWritable> createRecordReader(InputSplit split, TaskAttemptContext context)
+          throws IOException {
+    return new CombinedInstanceRecordReader();
+  }
+
+  /**
+   * A split of the chunks, placed on the hosts holding the most of its bytes.
+   */
+  private static CombinedInstanceSplit combine(ArrayList<FileSplit> chunks) throws IOException {
+    HashMap<String, Long> hostBytes = new HashMap<String, Long>();
+    for (FileSplit chunk : chunks) {
+      for (String host : chunk.getLocations()) {
+        Long bytes = hostBytes.get(host);
+        hostBytes.put(host, (bytes == null ? 0 : bytes) + chunk.getLength());
+      }
+    }
+
+    ArrayList<Entry<String, Long>> hosts = new ArrayList<Entry<String, Long>>(hostBytes.entrySet());
+    Collections.sort(hosts, new Comparator<Entry<String, Long>>() {
+
+      @Override
+      public int compare(Entry<String, Long> a, Entry<String, Long> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+
+    String[] locations = new String[Math.min(MAX_SPLIT_HOSTS, hosts.size())];
+    for (int i = 0; i < locations.length; i++) {
+      locations[i] = hosts.get(i).getKey();
+    }
+    return new CombinedInstanceSplit(chunks, locations);
+  }
+}
@@ -0,0 +1,55 @@
+package hadooptree.io;
+
+import hadooptree.tree.Instance;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A serialized instance, led by the node it was last routed to.  Category and
+ * bin ids take one vint, a numeric field a marker and a double, and a dropped
+ * field just a marker.  A binned field's number isn't written, so readers
+ * resolve it again from the field's bins.
+ */
+public class InstanceWritable extends Instance implements Writable {
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, nodeId);
+    WritableUtils.writeVInt(out, fieldCount);
+    for (int i = 0; i < fieldCount; i++) {
+      // Zero marks a dropped field and one a number, a larger value is the
+      // category id plus two and a negative one the bin id plus one
+      if (bins[i] >= 0) {
+        WritableUtils.writeVInt(out, -bins[i] - 1);
+      } else if (isDropped(i)) {
+        WritableUtils.writeVInt(out, 0);
+      } else {
+        WritableUtils.writeVInt(out, categoryIds[i] + 2);
+        if (categoryIds[i] < 0) {
+          out.writeDouble(numbers[i]);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    setNodeId(WritableUtils.readVInt(in));
+    setFieldCount(WritableUtils.readVInt(in));
+    for (int i = 0; i < fieldCount; i++) {
+      int marker = WritableUtils.readVInt(in);
+      if (marker < 0) {
+        setBin(i, -marker - 1);
+      } else if (marker == 0) {
+        dropField(i);
+      } else if (marker == 1) {
+        setNumber(i, in.readDouble());
+      } else {
+        setCategoryId(i, marker - 2);
+      }
+    }
+  }
+}
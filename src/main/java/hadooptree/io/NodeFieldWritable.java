@@ -0,0 +1,173 @@
+package hadooptree.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Shuffle key for the split jobs: a node, one of its fields and the numeric
+ * range the field's buckets span (zero for categorical fields).  The branch
+ * is zero for the node itself, or names a child the node would have under
+ * one of its speculative candidate splits.
+ */
+public class NodeFieldWritable implements WritableComparable<NodeFieldWritable> {
+
+  private int nodeId;
+  private int branch;
+  private int fieldId;
+  private double rangeMin;
+  private double rangeMax;
+
+  public NodeFieldWritable() {
+  }
+
+  public NodeFieldWritable(int nodeId, int fieldId, double rangeMin, double rangeMax) {
+    set(nodeId, fieldId, rangeMin, rangeMax);
+  }
+
+  public NodeFieldWritable(int nodeId, int branch, int fieldId, double rangeMin, double rangeMax) {
+    set(nodeId, branch, fieldId, rangeMin, rangeMax);
+  }
+
+  public final void set(int nodeId, int fieldId, double rangeMin, double rangeMax) {
+    set(nodeId, 0, fieldId, rangeMin, rangeMax);
+  }
+
+  public final void set(int nodeId, int branch, int fieldId, double rangeMin, double rangeMax) {
+    this.nodeId = nodeId;
+    this.branch = branch;
+    this.fieldId = fieldId;
+    this.rangeMin = rangeMin;
+    this.rangeMax = rangeMax;
+  }
+
+  public void set(NodeFieldWritable other) {
+    set(other.nodeId, other.branch, other.fieldId, other.rangeMin, other.rangeMax);
+  }
+
+  public int getNodeId() {
+    return nodeId;
+  }
+
+  public int getBranch() {
+    return branch;
+  }
+
+  public int getFieldId() {
+    return fieldId;
+  }
+
+  public double getRangeMin() {
+    return rangeMin;
+  }
+
+  public double getRangeMax() {
+    return rangeMax;
+  }
+
+  public double[] getRange() {
+    return new double[]{rangeMin, rangeMax};
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(nodeId);
+    out.writeInt(branch);
+    out.writeInt(fieldId);
+    out.writeDouble(rangeMin);
+    out.writeDouble(rangeMax);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    nodeId = in.readInt();
+    branch = in.readInt();
+    fieldId = in.readInt();
+    rangeMin = in.readDouble();
+    rangeMax = in.readDouble();
+  }
+
+  @Override
+  public int compareTo(NodeFieldWritable t) {
+    int result = compareInts(nodeId, t.nodeId);
+    if (result == 0) {
+      result = compareInts(branch, t.branch);
+    }
+    if (result == 0) {
+      result = compareInts(fieldId, t.fieldId);
+    }
+    if (result == 0) {
+      result = Double.compare(rangeMin, t.rangeMin);
+    }
+    if (result == 0) {
+      result = Double.compare(rangeMax, t.rangeMax);
+    }
+    return result;
+  }
+
+  private static int compareInts(int a, int b) {
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == null) {
+      return false;
+    }
+    if (getClass() != obj.getClass()) {
+      return false;
+    }
+    final NodeFieldWritable other = (NodeFieldWritable) obj;
+    return compareTo(other) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 7;
+    hash = 31 * hash + this.nodeId;
+    hash = 31 * hash + this.branch;
+    hash = 31 * hash + this.fieldId;
+    hash = 31 * hash + (int) (Double.doubleToLongBits(this.rangeMin) ^ (Double.doubleToLongBits(this.rangeMin) >>> 32));
+    hash = 31 * hash + (int) (Double.doubleToLongBits(this.rangeMax) ^ (Double.doubleToLongBits(this.rangeMax) >>> 32));
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return nodeId + "," + branch + "," + fieldId + "," + rangeMin + "," + rangeMax;
+  }
+
+  /**
+   * Orders serialized keys without deserializing them.
+   */
+  public static class Comparator extends WritableComparator {
+
+    public Comparator() {
+      super(NodeFieldWritable.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int result = compareInts(readInt(b1, s1), readInt(b2, s2));
+      if (result == 0) {
+        result = compareInts(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
+      }
+      if (result == 0) {
+        result = compareInts(readInt(b1, s1 + 8), readInt(b2, s2 + 8));
+      }
+      if (result == 0) {
+        result = Double.compare(readDouble(b1, s1 + 12), readDouble(b2, s2 + 12));
+      }
+      if (result == 0) {
+        result = Double.compare(readDouble(b1, s1 + 20), readDouble(b2, s2 + 20));
+      }
+      return result;
+    }
+  }
+
+  static {
+    WritableComparator.define(NodeFieldWritable.class, new Comparator());
+  }
+}
@@ -0,0 +1,30 @@
+package hadooptree.io;
+
+import java.io.IOException;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * The output of a job whose tasks write all of their files themselves, into
+ * the work output path.  The files are committed like any file output, but
+ * no part file is created, so a task leaves nothing empty behind.  (0.20 has
+ * no lazy output format, and the null one has no work path to commit.)
+ */
+public class SideFileOutputFormat<K, V> extends FileOutputFormat<K, V> {
+
+  @Override
+  public RecordWriter<K, V> getRecordWriter(TaskAttemptContext context) throws IOException, InterruptedException {
+    return new RecordWriter<K, V>() {
+
+      @Override
+      public void write(K key, V value) throws IOException {
+        throw new IOException("The job's tasks only write side files");
+      }
+
+      @Override
+      public void close(TaskAttemptContext context) {
+      }
+    };
+  }
+}
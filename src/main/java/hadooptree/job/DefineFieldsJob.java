@@ -1,14 +1,17 @@
 package hadooptree.job;
 
+import hadooptree.CsvTokenizer;
+import hadooptree.StreamingHistogram;
+import hadooptree.Utils;
 import hadooptree.tree.Field;
 import java.io.IOException;
 import java.util.Iterator;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.jdom.output.XMLOutputter;
 
@@ -16,22 +19,19 @@ public class DefineFieldsJob {
 
   public static class Map extends Mapper<LongWritable, Text, IntWritable, Text> {
 
+    private final CsvTokenizer tokenizer = new CsvTokenizer();
+
     @Override
     public void map(LongWritable key, Text value, Context context)
             throws IOException, InterruptedException {
-      String[] tokens = value.toString().split(",");
+      tokenizer.reset(value);
 
       int fieldId = 0;
-      for (String token : tokens) {
-        String trimmedToken = token.trim();
-        Text outputValue = null;
-        if (!trimmedToken.isEmpty()) {
-          outputValue = new Text(trimmedToken);
-        }
-
-        IntWritable outputKey = new IntWritable(fieldId);
-        if (outputValue != null) {
-          context.write(outputKey, outputValue);
+      while (tokenizer.next()) {
+        if (!tokenizer.isEmpty()) {
+          Text outputValue = new Text();
+          tokenizer.copyTo(outputValue);
+          context.write(new IntWritable(fieldId), outputValue);
         }
         fieldId++;
       }
@@ -41,25 +41,46 @@ public class DefineFieldsJob {
   public static class Reduce
           extends Reducer<IntWritable, Text, NullWritable, Text> {
 
+    private final CsvTokenizer tokenizer = new CsvTokenizer();
+
     @Override
     public void reduce(IntWritable key, Iterable<Text> values, Context context)
             throws IOException, InterruptedException {
     // TODO - Add better exception handling
 
       try {
+        Configuration conf = context.getConfiguration();
         Field fieldDefinition = new Field(key.get());
+        fieldDefinition.setDistinctValueLimit(conf.getInt(
+                Utils.DISTINCT_VALUE_LIMIT_KEY, Field.DEFAULT_DISTINCT_VALUE_LIMIT));
+
+        int globalBins = Math.min(conf.getInt(Utils.GLOBAL_BINS_KEY, 0), Utils.MAX_GLOBAL_BINS);
+        StreamingHistogram sketch = null;
+        if (globalBins > 1) {
+          sketch = new StreamingHistogram(Math.max(2 * globalBins, Utils.DEFAULT_STREAMING_BINS));
+        }
 
         Iterator<Text> iter = values.iterator();
         while (iter.hasNext()) {
           Text text = iter.next();
-          try {
-            double number = Double.valueOf(text.toString());
+          tokenizer.reset(text);
+          tokenizer.next();
+          if (tokenizer.isNumber()) {
+            double number = tokenizer.getNumber();
             fieldDefinition.addNumericValue(number);
-          } catch (NumberFormatException e) {
+            if (sketch != null) {
+              sketch.add(number);
+            }
+          } else {
             fieldDefinition.addCategoricalValue(text.toString());
           }
         }
 
+        // Fields with few distinct values are already split on exact values
+        if (sketch != null && !fieldDefinition.isCategorical() && !fieldDefinition.hasDistinctValues()) {
+          fieldDefinition.setBinCeilings(getBinCeilings(sketch, globalBins, fieldDefinition.getMaxValue()));
+        }
+
         XMLOutputter outputter = new XMLOutputter();
         String xmlString = outputter.outputString(fieldDefinition.toElement());
         Text outputValue = new Text(xmlString);
@@ -68,5 +89,22 @@ public class DefineFieldsJob {
         throw new IOException(e);
       }
     }
+
+    /**
+     * The quantiles that cut the field into bins of about equal size, closed
+     * by the field's largest value.
+     */
+    private static double[] getBinCeilings(StreamingHistogram sketch, int binCount, double maxValue) {
+      double[] points = sketch.uniform(binCount);
+      int ceilingCount = points.length;
+      while (ceilingCount > 0 && points[ceilingCount - 1] >= maxValue) {
+        ceilingCount--;
+      }
+
+      double[] ceilings = new double[ceilingCount + 1];
+      System.arraycopy(points, 0, ceilings, 0, ceilingCount);
+      ceilings[ceilingCount] = maxValue;
+      return ceilings;
+    }
   }
 }
@@ -0,0 +1,102 @@
+package hadooptree.job;
+
+import hadooptree.ClassHistogram;
+import hadooptree.Utils;
+import hadooptree.tree.Field;
+import hadooptree.tree.Tree;
+import java.util.ArrayList;
+
+/**
+ * Finds the best split of a field from its class histogram, and formats
+ * split results the way the driver reads them:
+ * splitValue,informationGain,trueCounts,falseCounts[,exhausted].
+ */
+public class FieldSplitFinder {
+
+  private final ArrayList<String> objectiveCategories;
+  private final long[] emptyCounts;
+
+  public FieldSplitFinder(Tree tree) {
+    objectiveCategories = tree.getObjectiveField().getCategoryList();
+    emptyCounts = new long[objectiveCategories.size()];
+  }
+
+  public ArrayList<String> getObjectiveCategories() {
+    return objectiveCategories;
+  }
+
+  /**
+   * The histogram's bins are category ids, global bins, distinct values or
+   * the equal width buckets of the range, depending on the field.  A
+   * categorical split is reported by its category id.
+   */
+  public String findBestSplit(Field field, ClassHistogram histogram, double[] range) {
+    if (isExhausted(field, histogram)) {
+      return printNoSplit(histogram.getTotals()) + "," + Utils.EXHAUSTED_FIELD;
+    }
+
+    String bestSplitValue;
+    if (field.isCategorical()) {
+      if (!histogram.findBestCategoricalSplit(Utils.DEFAULT_SPLIT_FLOOR)) {
+        return printNoSplit(histogram.getTotals());
+      }
+      bestSplitValue = String.valueOf(histogram.getBestBin());
+    } else if (field.hasGlobalBins()) {
+      if (!histogram.findBestNumericSplit(Utils.DEFAULT_SPLIT_FLOOR)) {
+        return printNoSplit(histogram.getTotals());
+      }
+      bestSplitValue = String.valueOf(field.getBinCeilings()[histogram.getBestBin()]);
+    } else if (field.hasDistinctValues()) {
+      if (!histogram.findBestNumericSplit(Utils.DEFAULT_SPLIT_FLOOR)) {
+        return printNoSplit(histogram.getTotals());
+      }
+      bestSplitValue = String.valueOf(field.getDistinctValues()[histogram.getBestBin()]);
+    } else {
+      if (!histogram.findBestNumericSplit(Utils.DEFAULT_SPLIT_FLOOR)) {
+        return printNoSplit(histogram.getTotals());
+      }
+      double bucketSize = (range[1] - range[0]) / (double) histogram.getBinCount();
+      bestSplitValue = String.valueOf(Utils.getBucketCeiling(range, bucketSize, histogram.getBestBin()));
+    }
+
+    StringBuilder builder = new StringBuilder();
+    builder.append(bestSplitValue);
+    builder.append(",");
+    builder.append(String.valueOf(histogram.getBestInformationGain()));
+    builder.append(",");
+    builder.append(Utils.printCounts(objectiveCategories, histogram.getBestTrueCounts()));
+    builder.append(",");
+    builder.append(Utils.printCounts(objectiveCategories, histogram.getBestFalseCounts()));
+    return builder.toString();
+  }
+
+  /**
+   * Whether the field can't split the node or any of its descendants: all of
+   * the node's values fall in one category, global bin or distinct value.
+   * Bucketed numeric fields are never exhausted, since a descendant's
+   * buckets may divide the same values differently.  A field that merely gains nothing
+   * isn't either, as it may still gain once other fields have split.
+   */
+  public boolean isExhausted(Field field, ClassHistogram histogram) {
+    if (!field.isCategorical() && !field.hasGlobalBins() && !field.hasDistinctValues()) {
+      return false;
+    }
+    return histogram.getOccupiedBinCount() <= 1;
+  }
+
+  /**
+   * Reports that no split was found, along with all of the node's instances
+   * as the true side so the driver still learns their class counts.
+   */
+  public String printNoSplit(long[] totals) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(String.valueOf(-Double.MAX_VALUE));
+    builder.append(",");
+    builder.append(String.valueOf(-Double.MAX_VALUE));
+    builder.append(",");
+    builder.append(Utils.printCounts(objectiveCategories, totals));
+    builder.append(",");
+    builder.append(Utils.printCounts(objectiveCategories, emptyCounts));
+    return builder.toString();
+  }
+}
@@ -1,22 +1,48 @@
 package hadooptree.job;
 
 import hadooptree.Utils;
+import hadooptree.io.InstanceWritable;
+import hadooptree.tree.CompiledTree;
 import hadooptree.tree.Node;
 import hadooptree.tree.Tree;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Mapper.Context;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
+/**
+ * Drops the instances that reached leaves, and the fields exhausted at the
+ * nodes of the rest.  The job is map-only: each map task writes the
+ * remaining instances straight into block compressed partition files, one
+ * per group of frontier nodes, and a manifest side file lists the partition
+ * files each node's instances went to.  Nodes are grouped in id order into
+ * groups of about PARTITION_RECORDS_KEY instances, using the node weights
+ * the driver sets for the job, so every task groups alike.
+ */
 public class FilterInstancesJob {
 
-  public static class Map extends Mapper<LongWritable, Text, NullWritable, Text> {
+  public static class Map extends Mapper<NullWritable, InstanceWritable, NullWritable, InstanceWritable> {
 
     private Tree tree;
+    private CompiledTree compiledTree;
+    private HashMap<Integer, Integer> nodeGroups;
+    private int otherGroup;
+    private FileSystem fs;
+    private Path workPath;
+    private String taskName;
+    private HashMap<Integer, SequenceFile.Writer> partitionWriters;
+    private TreeMap<Integer, Long> nodeCounts;
+    private HashMap<Integer, Integer> nodeGroupsWritten;
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -29,31 +55,90 @@ public class FilterInstancesJob {
       } catch (Exception e) {
         throw new IOException(e);
       }
+      compiledTree = tree.getCompiledTree();
+
+      long partitionRecords = conf.getLong(Utils.PARTITION_RECORDS_KEY, Utils.DEFAULT_PARTITION_RECORDS);
+      nodeGroups = new HashMap<Integer, Integer>();
+      int group = 0;
+      long groupRecords = 0;
+      for (Entry<Integer, Long> entry : WeightedPartitioner.getNodeWeights(conf).entrySet()) {
+        if (groupRecords >= partitionRecords) {
+          group++;
+          groupRecords = 0;
+        }
+        nodeGroups.put(entry.getKey(), group);
+        groupRecords += entry.getValue();
+      }
+      // Nodes the driver didn't expect share one more group
+      otherGroup = group + 1;
+
+      fs = FileSystem.get(conf);
+      workPath = FileOutputFormat.getWorkOutputPath(context);
+      taskName = String.format("m-%05d", context.getTaskAttemptID().getTaskID().getId());
+      partitionWriters = new HashMap<Integer, SequenceFile.Writer>();
+      nodeCounts = new TreeMap<Integer, Long>();
+      nodeGroupsWritten = new HashMap<Integer, Integer>();
     }
 
     @Override
-    protected void map(LongWritable key, Text value, Context context)
+    protected void map(NullWritable key, InstanceWritable value, Context context)
             throws IOException, InterruptedException {
 
-      String instanceString = value.toString();
-      instanceString = instanceString.trim();
-      if (instanceString.isEmpty()) {
+      value.resolveBins(tree.getFields());
+      int nodeId = compiledTree.route(value);
+
+      if (compiledTree.isLeaf(nodeId)) {
         return;
       }
 
-      ArrayList<Object> instance;
-      try {
-        instance = Utils.convertInstanceStringToArrayList(instanceString, tree.getFields());
-      } catch (Exception e) {
-        throw new IOException(e);
+      // The instance keeps its node, so the next pass resumes from there
+      value.setNodeId(nodeId);
+      Node node = compiledTree.getNode(nodeId);
+
+      BitSet exhaustedFields = node.getExhaustedFields();
+      if (exhaustedFields != null) {
+        for (int fieldId = exhaustedFields.nextSetBit(0); fieldId >= 0; fieldId = exhaustedFields.nextSetBit(fieldId + 1)) {
+          value.dropField(fieldId);
+        }
+      }
+
+      Integer group = nodeGroups.get(nodeId);
+      if (group == null) {
+        group = otherGroup;
       }
 
-      Node node = tree.evalToNode(instance);
+      SequenceFile.Writer writer = partitionWriters.get(group);
+      if (writer == null) {
+        writer = SequenceFile.createWriter(fs, context.getConfiguration(), new Path(workPath, getPartitionName(group)),
+                NullWritable.class, InstanceWritable.class, SequenceFile.CompressionType.BLOCK);
+        partitionWriters.put(group, writer);
+      }
+      writer.append(NullWritable.get(), value);
+
+      Long count = nodeCounts.get(nodeId);
+      nodeCounts.put(nodeId, count == null ? 1L : count + 1);
+      nodeGroupsWritten.put(nodeId, group);
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      for (SequenceFile.Writer writer : partitionWriters.values()) {
+        writer.close();
+      }
 
-      if (!node.isLeaf()) {
-        context.write(NullWritable.get(), value);
+      Path manifestPath = new Path(workPath, Utils.PARTITION_MANIFEST_PREFIX + taskName);
+      PrintWriter manifestWriter = new PrintWriter(new OutputStreamWriter(fs.create(manifestPath), "UTF-8"));
+      for (Entry<Integer, Long> entry : nodeCounts.entrySet()) {
+        String partitionName = getPartitionName(nodeGroupsWritten.get(entry.getKey()));
+        manifestWriter.println(entry.getKey() + "\t" + partitionName + "\t" + entry.getValue());
       }
+      manifestWriter.close();
+
+      super.cleanup(context);
     }
-  }
 
+    private String getPartitionName(int group) {
+      return String.format("partition-%s-%05d", taskName, group);
+    }
+  }
 }
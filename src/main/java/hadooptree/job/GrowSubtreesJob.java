@@ -1,21 +1,23 @@
 package hadooptree.job;
 
+import hadooptree.ClassHistogram;
 import hadooptree.SplitResults;
 import hadooptree.Utils;
+import hadooptree.io.InstanceWritable;
+import hadooptree.tree.CompiledTree;
 import hadooptree.tree.Field;
+import hadooptree.tree.Instance;
 import hadooptree.tree.Node;
 import hadooptree.tree.Split;
 import hadooptree.tree.Tree;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
@@ -26,9 +28,11 @@ import org.jdom.output.XMLOutputter;
 
 public class GrowSubtreesJob {
 
-  public static class Map extends Mapper<LongWritable, Text, Text, Text> {
+  public static class Map extends Mapper<NullWritable, InstanceWritable, IntWritable, InstanceWritable> {
 
     private Tree tree;
+    private CompiledTree compiledTree;
+    private final IntWritable outputKey = new IntWritable();
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -41,38 +45,31 @@ public class GrowSubtreesJob {
       } catch (Exception e) {
         throw new IOException(e);
       }
+      compiledTree = tree.getCompiledTree();
     }
 
     @Override
-    protected void map(LongWritable key, Text value, Context context)
+    protected void map(NullWritable key, InstanceWritable value, Context context)
             throws IOException, InterruptedException {
 
-      String instanceString = value.toString();
-      instanceString = instanceString.trim();
-      if (instanceString.isEmpty()) {
-        return;
-      }
-
-      ArrayList<Object> instance;
-      try {
-        instance = Utils.convertInstanceStringToArrayList(instanceString, tree.getFields());
-      } catch (Exception e) {
-        throw new IOException(e);
-      }
+      value.resolveBins(tree.getFields());
+      int nodeId = compiledTree.route(value);
 
-      Node node = tree.evalToNode(instance);
-
-      if (!node.isLeaf() && node.getTotalCount() < Utils.DEFAULT_SUBTREE_FLOOR) {
-        int leafId = node.getId();
-        context.write(new Text(String.valueOf(leafId)), value);
+      if (!compiledTree.isLeaf(nodeId) && compiledTree.getTotalCount(nodeId) < Utils.DEFAULT_SUBTREE_FLOOR) {
+        outputKey.set(nodeId);
+        context.write(outputKey, value);
       }
     }
   }
 
   public static class Reduce
-          extends Reducer<Text, Text, NullWritable, Text> {
+          extends Reducer<IntWritable, InstanceWritable, NullWritable, Text> {
 
     private Tree tree;
+    private ArrayList<String> objectiveCategories;
+    private final ClassHistogram histogram = new ClassHistogram();
+    private double[] values = new double[0];
+    private double[] distinctValues = new double[0];
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -85,47 +82,38 @@ public class GrowSubtreesJob {
       } catch (Exception e) {
         throw new IOException(e);
       }
+
+      objectiveCategories = tree.getObjectiveField().getCategoryList();
     }
 
     @Override
-    public void reduce(Text key, Iterable<Text> values, Context context)
+    public void reduce(IntWritable key, Iterable<InstanceWritable> values, Context context)
             throws IOException, InterruptedException {
 
-      ArrayList<ArrayList<Object>> instances = new ArrayList<ArrayList<Object>>();
-
-      // TODO - Add better exception handling
-      try {
-        Iterator<Text> iter = values.iterator();
-        while (iter.hasNext()) {
-          Text value = iter.next();
-          String instanceString = value.toString();
-          instanceString = instanceString.trim();
-          if (instanceString.isEmpty()) {
-            continue;
-          }
-          ArrayList<Object> instance = Utils.convertInstanceStringToArrayList(instanceString, tree.getFields());
-          instances.add(instance);
+      ArrayList<Instance> instances = new ArrayList<Instance>();
+      long[] counts = new long[objectiveCategories.size()];
+      int[] classIds = new int[16];
+
+      // Count the instances rather than trusting the node, whose counts may
+      // be estimates
+      Iterator<InstanceWritable> iter = values.iterator();
+      while (iter.hasNext()) {
+        InstanceWritable value = iter.next();
+        if (instances.size() == classIds.length) {
+          classIds = Arrays.copyOf(classIds, classIds.length * 2);
         }
-
-      } catch (Exception e) {
-        throw new IOException(e);
+        classIds[instances.size()] = value.getCategoryId(tree.getObjectiveFieldIndex());
+        counts[classIds[instances.size()]]++;
+        // The values are reused, so each instance is copied
+        Instance instance = new Instance(value);
+        instance.resolveBins(tree.getFields());
+        instances.add(instance);
       }
+      classIds = Arrays.copyOf(classIds, instances.size());
 
-      Node originalNode = tree.evalToNode(instances.get(0));
-
-      TreeMap<String, Long> objectiveCategoryCountMap = originalNode.getObjectiveCategoryCountMap();
-      HashMap<String, Integer> objectiveCategoryIdMap = tree.createObjectiveCategoryIdMap();
-
-      Long[] counts = new Long[objectiveCategoryIdMap.size()];
-      for (Entry<String, Integer> entry : objectiveCategoryIdMap.entrySet()) {
-        String category = entry.getKey();
-        int index = entry.getValue();
-        long count = objectiveCategoryCountMap.get(category);
-        counts[index] = count;
-      }
-
-      Node newRoot = createNode(null, instances, objectiveCategoryIdMap, counts);
-      newRoot.setId(originalNode.getId());
+      // Fields exhausted at the node stay exhausted throughout its subtree
+      Node newRoot = createNode(null, instances, classIds, counts, tree.getNode(key.get()).getExhaustedFields());
+      newRoot.setId(key.get());
 
       Element element = newRoot.toElement("subtreeRoot");
       XMLOutputter outputter = new XMLOutputter();
@@ -134,14 +122,14 @@ public class GrowSubtreesJob {
       context.write(NullWritable.get(), value);
     }
 
-    private Node createNode(Node parent, ArrayList<ArrayList<Object>> instances,
-            HashMap<String, Integer> objectiveCategoryIdMap,
-            Long[] originalCounts) {
+    private Node createNode(Node parent, ArrayList<Instance> instances,
+            int[] classIds, long[] originalCounts, BitSet exhaustedFields) {
 
       SplitResults bestSplitResults = null;
 
       for (int fieldIndex = 0; fieldIndex < tree.getFields().size(); fieldIndex++) {
-        if (fieldIndex == tree.getObjectiveFieldIndex()) {
+        if (fieldIndex == tree.getObjectiveFieldIndex()
+                || (exhaustedFields != null && exhaustedFields.get(fieldIndex))) {
           continue;
         }
 
@@ -149,9 +137,11 @@ public class GrowSubtreesJob {
 
         SplitResults splitResults = null;
         if (field.isCategorical()) {
-          splitResults = findBestCategoricalSplit(field, instances, objectiveCategoryIdMap, originalCounts);
+          splitResults = findBestCategoricalSplit(field, instances, classIds);
+        } else if (field.hasGlobalBins()) {
+          splitResults = findBestBinnedSplit(field, instances, classIds);
         } else {
-          splitResults = findBestNumericSplit(field, instances, objectiveCategoryIdMap, originalCounts);
+          splitResults = findBestNumericSplit(field, instances, classIds);
         }
 
         if (splitResults != null && (bestSplitResults == null
@@ -161,33 +151,35 @@ public class GrowSubtreesJob {
       }
 
       TreeMap<String, Long> objectiveCategoryCountMap = new TreeMap<String, Long>();
-      for (Entry<String, Integer> entry : objectiveCategoryIdMap.entrySet()) {
-        String category = entry.getKey();
-        int index = entry.getValue();
-        long count = originalCounts[index];
-        objectiveCategoryCountMap.put(category, count);
+      for (int i = 0; i < originalCounts.length; i++) {
+        objectiveCategoryCountMap.put(objectiveCategories.get(i), originalCounts[i]);
       }
 
       Node node = new Node(-1, parent, objectiveCategoryCountMap);
       if (bestSplitResults == null) {
         node.setIsLeaf(true);
       } else {
-        ArrayList<ArrayList<Object>> trueInstances = new ArrayList<ArrayList<Object>>();
-        ArrayList<ArrayList<Object>> falseInstances = new ArrayList<ArrayList<Object>>();
+        long[] trueCounts = bestSplitResults.getTrueCounts();
+        long[] falseCounts = bestSplitResults.getFalseCounts();
 
-        for (ArrayList<Object> instance : instances) {
+        ArrayList<Instance> trueInstances = new ArrayList<Instance>();
+        ArrayList<Instance> falseInstances = new ArrayList<Instance>();
+        int[] trueClassIds = new int[(int) Utils.sumCounts(trueCounts)];
+        int[] falseClassIds = new int[(int) Utils.sumCounts(falseCounts)];
+
+        for (int i = 0; i < instances.size(); i++) {
+          Instance instance = instances.get(i);
           if (bestSplitResults.getSplit().eval(instance)) {
+            trueClassIds[trueInstances.size()] = classIds[i];
             trueInstances.add(instance);
           } else {
+            falseClassIds[falseInstances.size()] = classIds[i];
             falseInstances.add(instance);
           }
         }
 
-        Long[] trueCounts = bestSplitResults.getTrueCounts();
-        Node trueChild = createNode(node, trueInstances, objectiveCategoryIdMap, trueCounts);
-
-        Long[] falseCounts = bestSplitResults.getFalseCounts();
-        Node falseChild = createNode(node, falseInstances, objectiveCategoryIdMap, falseCounts);
+        Node trueChild = createNode(node, trueInstances, trueClassIds, trueCounts, exhaustedFields);
+        Node falseChild = createNode(node, falseInstances, falseClassIds, falseCounts, exhaustedFields);
 
         node.addSplit(bestSplitResults.getSplit(), trueChild, falseChild);
       }
@@ -195,154 +187,90 @@ public class GrowSubtreesJob {
       return node;
     }
 
-    private SplitResults findBestCategoricalSplit(Field field, ArrayList<ArrayList<Object>> instances, HashMap<String, Integer> objectiveCategoryIdMap, Long[] originalCounts) {
-
-      String bestSplitCategory = null;
-      double maxInformationGain = -Double.MAX_VALUE;
-
-      Long[] bestTrueCounts = null;
-      Long[] bestFalseCounts = null;
-
-      for (String category : field.getCategorySet()) {
-        Long[] trueCounts = new Long[originalCounts.length];
-        Arrays.fill(trueCounts, 0l);
-
-        Long[] falseCounts = new Long[originalCounts.length];
-        Arrays.fill(falseCounts, 0l);
-
-        int objectiveCategoryId = objectiveCategoryIdMap.get(category);
-
-        for (ArrayList<Object> instance : instances) {
-          if (category.equals(instance.get(field.getIndex()))) {
-            trueCounts[objectiveCategoryId]++;
-          } else {
-            falseCounts[objectiveCategoryId]++;
-          }
-        }
-
-        double informationGain = Utils.findInformationGain(originalCounts, trueCounts, falseCounts);
-
-        long trueInstanceCount = Utils.sumCounts(trueCounts);
-        long falseInstanceCount = Utils.sumCounts(falseCounts);
+    private SplitResults findBestCategoricalSplit(Field field, ArrayList<Instance> instances, int[] classIds) {
+      int fieldIndex = field.getIndex();
 
-        if (informationGain > maxInformationGain
-                && trueInstanceCount > Utils.DEFAULT_SPLIT_FLOOR
-                && falseInstanceCount > Utils.DEFAULT_SPLIT_FLOOR) {
-          maxInformationGain = informationGain;
-          bestSplitCategory = category;
-          bestTrueCounts = trueCounts;
-          bestFalseCounts = falseCounts;
-        }
+      histogram.reset(field.getCategoryCount(), objectiveCategories.size());
+      for (int i = 0; i < instances.size(); i++) {
+        histogram.add(instances.get(i).getCategoryId(fieldIndex), classIds[i], 1);
       }
 
-      SplitResults bestSplitResults = null;
-      if (bestSplitCategory != null) {
-        Split bestSplit = new Split(field.getIndex(), bestSplitCategory);
-        bestSplitResults = new SplitResults(bestSplit, maxInformationGain, bestTrueCounts, bestFalseCounts);
+      if (!histogram.findBestCategoricalSplit(Utils.DEFAULT_SPLIT_FLOOR)) {
+        return null;
       }
 
-      return bestSplitResults;
+      int bestCategoryId = histogram.getBestBin();
+      Split bestSplit = new Split(fieldIndex, field.getCategory(bestCategoryId), bestCategoryId);
+      return new SplitResults(bestSplit, histogram.getBestInformationGain(),
+              histogram.getBestTrueCounts().clone(), histogram.getBestFalseCounts().clone());
     }
 
-    private SplitResults findBestNumericSplit(Field field, ArrayList<ArrayList<Object>> instances, HashMap<String, Integer> objectiveCategoryIdMap, Long[] originalCounts) {
-
-      double bestSplitPoint = -Double.MAX_VALUE;
-      double maxInformationGain = -Double.MAX_VALUE;
-
-      Long[] bestTrueCounts = null;
-      Long[] bestFalseCounts = null;
-
-      Long[] greaterThanCounts = originalCounts.clone();
-      Long[] lessThanCounts = new Long[originalCounts.length];
-      Arrays.fill(lessThanCounts, 0l);
-
-      int fieldId = field.getIndex();
-      int objectiveFieldId = tree.getObjectiveFieldIndex();
-
-      ArrayList<NumericCategoricalPair> pairInstances = new ArrayList<NumericCategoricalPair>();
-      for (ArrayList<Object> instance : instances) {
-        Double fieldValue = (Double) instance.get(fieldId);
-        String objectiveFieldValue = (String) instance.get(objectiveFieldId);
-        NumericCategoricalPair pairInstance = new NumericCategoricalPair(fieldValue, objectiveFieldValue);
-        pairInstances.add(pairInstance);
-      }
-
-      Collections.sort(pairInstances);
-
-      NumericCategoricalPair previousPairInstance = null;
-
-      for (NumericCategoricalPair pairInstance : pairInstances) {
-        if (previousPairInstance == null) {
-          previousPairInstance = pairInstance;
-          continue;
-        }
-
-        String previousObjectiveCategory = previousPairInstance.getCategoricalValue();
-        int previousObjectiveCategoryId = objectiveCategoryIdMap.get(previousObjectiveCategory);
-
-        greaterThanCounts[previousObjectiveCategoryId]--;
-        lessThanCounts[previousObjectiveCategoryId]++;
-
-        double previousFieldValue = previousPairInstance.getNumericValue();
-        double currentFieldValue = pairInstance.getNumericValue();
-
-        if (previousFieldValue == currentFieldValue) {
-          previousPairInstance = pairInstance;
-          continue;
-        }
-
-        double informationGain = Utils.findInformationGain(originalCounts, greaterThanCounts, lessThanCounts);
-
-        long lessThanInstanceCount = Utils.sumCounts(lessThanCounts);
-        long greaterThanInstanceCount = Utils.sumCounts(greaterThanCounts);
-
-        if (informationGain > maxInformationGain
-                && greaterThanInstanceCount > Utils.DEFAULT_SPLIT_FLOOR
-                && lessThanInstanceCount > Utils.DEFAULT_SPLIT_FLOOR) {
-          maxInformationGain = informationGain;
-          bestSplitPoint = (previousFieldValue + currentFieldValue) / 2d;
-          bestTrueCounts = lessThanCounts.clone();
-          bestFalseCounts = greaterThanCounts.clone();
-        }
-
-        previousPairInstance = pairInstance;
+    /**
+     * Works on the bin ids.  The instances only know their bins, so the split
+     * has to fall on a ceiling for the tree to route the original values the
+     * same way.
+     */
+    private SplitResults findBestBinnedSplit(Field field, ArrayList<Instance> instances, int[] classIds) {
+      int fieldIndex = field.getIndex();
+      double[] binCeilings = field.getBinCeilings();
+
+      histogram.reset(binCeilings.length, objectiveCategories.size());
+      for (int i = 0; i < instances.size(); i++) {
+        histogram.add(instances.get(i).getBin(fieldIndex), classIds[i], 1);
       }
 
-      SplitResults bestSplitResults = null;
-      if (maxInformationGain != -Double.MAX_VALUE) {
-        Split bestSplit = new Split(field.getIndex(), bestSplitPoint);
-        bestSplitResults = new SplitResults(bestSplit, maxInformationGain, bestTrueCounts, bestFalseCounts);
+      if (!histogram.findBestNumericSplit(Utils.DEFAULT_SPLIT_FLOOR)) {
+        return null;
       }
 
-      return bestSplitResults;
+      Split bestSplit = new Split(fieldIndex, binCeilings[histogram.getBestBin()]);
+      return new SplitResults(bestSplit, histogram.getBestInformationGain(),
+              histogram.getBestTrueCounts().clone(), histogram.getBestFalseCounts().clone());
     }
 
-    private class NumericCategoricalPair implements Comparable<NumericCategoricalPair> {
-
-      private final double numericValue;
-      private final String categoricalValue;
+    /**
+     * Uses every distinct value as a bin, so the best split is exact.  The
+     * threshold lies halfway between the distinct values on either side.
+     */
+    private SplitResults findBestNumericSplit(Field field, ArrayList<Instance> instances, int[] classIds) {
+      int fieldIndex = field.getIndex();
+      int instanceCount = instances.size();
+
+      if (values.length < instanceCount) {
+        values = new double[instanceCount];
+        distinctValues = new double[instanceCount];
+      }
 
-      public NumericCategoricalPair(double numericValue, String categoricalValue) {
-        this.numericValue = numericValue;
-        this.categoricalValue = categoricalValue;
+      for (int i = 0; i < instanceCount; i++) {
+        // Adding zero turns -0.0 into 0.0, which the binary search tells apart
+        values[i] = instances.get(i).getNumber(fieldIndex) + 0d;
       }
 
-      public String getCategoricalValue() {
-        return categoricalValue;
+      System.arraycopy(values, 0, distinctValues, 0, instanceCount);
+      Arrays.sort(distinctValues, 0, instanceCount);
+      int distinctCount = 0;
+      for (int i = 0; i < instanceCount; i++) {
+        if (distinctCount == 0 || distinctValues[distinctCount - 1] != distinctValues[i]) {
+          distinctValues[distinctCount] = distinctValues[i];
+          distinctCount++;
+        }
       }
 
-      public double getNumericValue() {
-        return numericValue;
+      histogram.reset(distinctCount, objectiveCategories.size());
+      for (int i = 0; i < instanceCount; i++) {
+        int bin = Arrays.binarySearch(distinctValues, 0, distinctCount, values[i]);
+        histogram.add(bin, classIds[i], 1);
       }
 
-      @Override
-      public int compareTo(NumericCategoricalPair t) {
-        int result = Double.compare(numericValue, t.getNumericValue());
-        if (result == 0) {
-          result = categoricalValue.compareTo(t.getCategoricalValue());
-        }
-        return result;
+      if (!histogram.findBestNumericSplit(Utils.DEFAULT_SPLIT_FLOOR)) {
+        return null;
       }
+
+      int bestBin = histogram.getBestBin();
+      double bestSplitPoint = (distinctValues[bestBin] + distinctValues[bestBin + 1]) / 2d;
+      Split bestSplit = new Split(fieldIndex, bestSplitPoint);
+      return new SplitResults(bestSplit, histogram.getBestInformationGain(),
+              histogram.getBestTrueCounts().clone(), histogram.getBestFalseCounts().clone());
     }
   }
 }
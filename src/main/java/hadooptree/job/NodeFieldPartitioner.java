@@ -0,0 +1,33 @@
+package hadooptree.job;
+
+import hadooptree.io.HistogramWritable;
+import hadooptree.io.NodeFieldWritable;
+import org.apache.hadoop.conf.Configuration;
+
+public class NodeFieldPartitioner extends WeightedPartitioner<NodeFieldWritable, HistogramWritable> {
+
+  @Override
+  protected int[] getFieldIds(Configuration conf) {
+    String fieldIdString = conf.get(FIELD_IDS_KEY, "");
+    if (fieldIdString.isEmpty()) {
+      return new int[0];
+    }
+
+    String[] tokens = fieldIdString.split(",");
+    int[] fieldIds = new int[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      fieldIds[i] = Integer.valueOf(tokens[i]);
+    }
+    return fieldIds;
+  }
+
+  @Override
+  public int getPartition(NodeFieldWritable key, HistogramWritable value, int numPartitions) {
+    // Speculative children aren't planned, so they are spread by hash
+    if (key.getBranch() != 0) {
+      int hash = (key.getNodeId() * 31 + key.getBranch()) * 31 + key.getFieldId();
+      return (hash & Integer.MAX_VALUE) % numPartitions;
+    }
+    return getPartition(key.getNodeId(), key.getFieldId(), numPartitions);
+  }
+}
@@ -1,29 +1,52 @@
 package hadooptree.job;
 
+import hadooptree.ClassHistogram;
+import hadooptree.NumericBucketCounts;
+import hadooptree.StreamingHistogram;
 import hadooptree.Utils;
+import hadooptree.io.HistogramWritable;
+import hadooptree.io.InstanceWritable;
+import hadooptree.io.NodeFieldWritable;
+import hadooptree.tree.CompiledTree;
 import hadooptree.tree.Field;
 import hadooptree.tree.Tree;
 import hadooptree.tree.Node;
+import hadooptree.tree.Split;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
-import java.util.TreeMap;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
 public class NodeFieldSplitsJob {
 
-  public static class Map extends Mapper<LongWritable, Text, Text, Text> {
+  public static class Map extends Mapper<NullWritable, InstanceWritable, NodeFieldWritable, HistogramWritable> {
 
     private Tree tree;
+    private CompiledTree compiledTree;
+    private int objectiveCategoryCount;
+    private int maxHistogramEntries;
+    private int histogramEntryCount;
+    private HashMap<NodeFieldWritable, HashMap<Integer, long[]>> histograms;
+    private boolean streamingHistograms;
+    private int streamingBins;
+    private HashMap<NodeFieldWritable, StreamingHistogram[]> sketches;
+    private NumericBucketCounts bucketCounts;
+    private final NodeFieldWritable histogramKey = new NodeFieldWritable();
+    private final HistogramWritable outputValue = new HistogramWritable();
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -36,60 +59,187 @@ public class NodeFieldSplitsJob {
       } catch (Exception e) {
         throw new IOException(e);
       }
+      compiledTree = tree.getCompiledTree();
+
+      objectiveCategoryCount = tree.getObjectiveField().getCategorySet().size();
+      maxHistogramEntries = conf.getInt(Utils.MAP_HISTOGRAM_ENTRIES_KEY, Utils.DEFAULT_MAP_HISTOGRAM_ENTRIES);
+      histogramEntryCount = 0;
+      histograms = new HashMap<NodeFieldWritable, HashMap<Integer, long[]>>();
+
+      streamingHistograms = Utils.isStreamingNumericHistogram(conf);
+      streamingBins = conf.getInt(Utils.STREAMING_BINS_KEY, Utils.DEFAULT_STREAMING_BINS);
+      sketches = new HashMap<NodeFieldWritable, StreamingHistogram[]>();
+      bucketCounts = new NumericBucketCounts(conf, tree.getFields().size(), objectiveCategoryCount);
     }
 
     @Override
-    protected void map(LongWritable key, Text value, Context context)
+    protected void map(NullWritable key, InstanceWritable value, Context context)
             throws IOException, InterruptedException {
 
-      String instanceString = value.toString();
-      instanceString = instanceString.trim();
-      if (instanceString.isEmpty()) {
+      value.resolveBins(tree.getFields());
+      int nodeId = compiledTree.route(value);
+
+      if (compiledTree.isLeaf(nodeId) || compiledTree.getTotalCount(nodeId) < Utils.DEFAULT_SUBTREE_FLOOR) {
         return;
       }
 
-      ArrayList<Object> instance;
-      try {
-        instance = Utils.convertInstanceStringToArrayList(instanceString, tree.getFields());
-      } catch (Exception e) {
-        throw new IOException(e);
+      Node node = compiledTree.getNode(nodeId);
+
+      int objectiveCategoryId = value.getCategoryId(tree.getObjectiveFieldIndex());
+
+      // Derived nodes get their histograms from the parent minus the sibling
+      if (!node.isDerived()) {
+        Node sibling = node.getSibling();
+        if (sibling != null && !sibling.isDerived()) {
+          sibling = null;
+        }
+
+        for (int fieldId = 0; fieldId < tree.getFields().size(); fieldId++) {
+          if (fieldId == tree.getObjectiveFieldIndex()) {
+            continue;
+          }
+
+          Field field = tree.getFields().get(fieldId);
+          if (!node.isFieldExhausted(fieldId)) {
+            addToHistogram(node, 0, field, value, objectiveCategoryId, 1);
+          }
+          if (sibling != null && !sibling.isFieldExhausted(fieldId)) {
+            addToHistogram(sibling, 0, field, value, objectiveCategoryId, -1);
+          }
+        }
       }
 
+      // Children under the candidate splits are bucketed on the node's grid,
+      // which is its own, as derived nodes get no candidates
+      ArrayList<Split> candidateSplits = node.getCandidateSplits();
+      if (candidateSplits != null) {
+        for (int candidate = 0; candidate < candidateSplits.size(); candidate++) {
+          int branch = Utils.getSpeculativeBranch(candidate, candidateSplits.get(candidate).eval(value));
+          for (int fieldId = 0; fieldId < tree.getFields().size(); fieldId++) {
+            if (fieldId != tree.getObjectiveFieldIndex() && !node.isFieldExhausted(fieldId)) {
+              Field field = tree.getFields().get(fieldId);
+              addToHistogram(node, branch, field, value, objectiveCategoryId, 1);
+            }
+          }
+        }
+      }
+
+      if (histogramEntryCount >= maxHistogramEntries) {
+        flushHistograms(context);
+      }
+    }
 
-      Node node = tree.evalToNode(instance);
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      flushHistograms(context);
+      super.cleanup(context);
+    }
 
-      if (node.isLeaf() || node.getTotalCount() < Utils.DEFAULT_SUBTREE_FLOOR) {
+    private void addToHistogram(Node node, int branch, Field field, InstanceWritable instance, int objectiveCategoryId, long delta) {
+      int fieldId = field.getIndex();
+      int bin;
+      if (field.isCategorical()) {
+        histogramKey.set(node.getId(), branch, fieldId, 0, 0);
+        bin = instance.getCategoryId(fieldId);
+      } else if (field.hasGlobalBins()) {
+        histogramKey.set(node.getId(), branch, fieldId, 0, 0);
+        bin = instance.getBin(fieldId);
+      } else if (field.hasDistinctValues()) {
+        histogramKey.set(node.getId(), branch, fieldId, 0, 0);
+        bin = field.findDistinctValue(instance.getNumber(fieldId));
+        if (bin < 0) {
+          return;
+        }
+      } else if (streamingHistograms) {
+        histogramKey.set(node.getId(), branch, fieldId, 0, 0);
+        addToSketch(instance.getNumber(fieldId), objectiveCategoryId);
         return;
+      } else {
+        int gridNodeId = node.getGridNode(field).getId();
+        double rangeMin = tree.getRangeMin(gridNodeId, fieldId);
+        double rangeMax = tree.getRangeMax(gridNodeId, fieldId);
+        histogramKey.set(node.getId(), branch, fieldId, rangeMin, rangeMax);
+
+        bin = Utils.findBucket(instance.getNumber(fieldId), rangeMin, rangeMax, bucketCounts.get(node, field));
+        if (bin < 0) {
+          return;
+        }
       }
 
-      int leafId = node.getId();
-      String objectiveValueString = instance.get(tree.getObjectiveFieldIndex()).toString();
+      addToHistogram(bin, objectiveCategoryId, delta);
+    }
 
-      for (int fieldId = 0; fieldId < tree.getFields().size(); fieldId++) {
-        if (fieldId == tree.getObjectiveFieldIndex()) {
-          continue;
-        }
+    private void addToHistogram(int bin, int objectiveCategoryId, long delta) {
+      HashMap<Integer, long[]> histogram = histograms.get(histogramKey);
+      if (histogram == null) {
+        histogram = new HashMap<Integer, long[]>();
+        NodeFieldWritable newKey = new NodeFieldWritable();
+        newKey.set(histogramKey);
+        histograms.put(newKey, histogram);
+      }
 
-        String keyString = String.valueOf(leafId) + "," + String.valueOf(fieldId);
+      long[] counts = histogram.get(bin);
+      if (counts == null) {
+        counts = new long[objectiveCategoryCount];
+        histogram.put(bin, counts);
+        histogramEntryCount++;
+      }
+      counts[objectiveCategoryId] += delta;
+    }
 
-        Field field = tree.getFields().get(fieldId);
-        if (!field.isCategorical()) {
-          double[] range = node.getRange(node, field);
-          keyString += "," + range[0] + "," + range[1];
+    private void addToSketch(double fieldValue, int objectiveCategoryId) {
+      StreamingHistogram[] classSketches = sketches.get(histogramKey);
+      if (classSketches == null) {
+        classSketches = new StreamingHistogram[objectiveCategoryCount];
+        for (int i = 0; i < objectiveCategoryCount; i++) {
+          classSketches[i] = new StreamingHistogram(streamingBins);
         }
+        NodeFieldWritable newKey = new NodeFieldWritable();
+        newKey.set(histogramKey);
+        sketches.put(newKey, classSketches);
+        histogramEntryCount += objectiveCategoryCount * streamingBins;
+      }
+      classSketches[objectiveCategoryId].add(fieldValue);
+    }
 
-        String valueString = instance.get(fieldId).toString() + "," + objectiveValueString;
+    private void flushHistograms(Context context) throws IOException, InterruptedException {
+      for (Entry<NodeFieldWritable, HashMap<Integer, long[]>> entry : histograms.entrySet()) {
+        outputValue.clear(objectiveCategoryCount);
+        for (Entry<Integer, long[]> binEntry : entry.getValue().entrySet()) {
+          outputValue.add(binEntry.getKey(), binEntry.getValue());
+        }
+        context.write(entry.getKey(), outputValue);
+      }
 
-        context.write(new Text(keyString), new Text(valueString));
+      for (Entry<NodeFieldWritable, StreamingHistogram[]> entry : sketches.entrySet()) {
+        outputValue.clear(objectiveCategoryCount);
+        outputValue.setSketches(entry.getValue());
+        context.write(entry.getKey(), outputValue);
       }
 
+      histograms.clear();
+      sketches.clear();
+      histogramEntryCount = 0;
     }
   }
 
   public static class Reduce
-          extends Reducer<Text, Text, NullWritable, Text> {
+          extends Reducer<NodeFieldWritable, HistogramWritable, NullWritable, Text> {
 
     private Tree tree;
+    private int objectiveCategoryCount;
+    private boolean streamingHistograms;
+    private int streamingBins;
+    private NumericBucketCounts bucketCounts;
+    private final Text outputValue = new Text();
+    private MapFile.Reader[] parentHistogramReaders;
+    private MapFile.Writer histogramWriter;
+    private final NodeFieldWritable parentKey = new NodeFieldWritable();
+    private final HistogramWritable parentHistogram = new HistogramWritable();
+    private final HistogramWritable mergedHistogram = new HistogramWritable();
+    private final ClassHistogram histogram = new ClassHistogram();
+    private final double[] range = new double[2];
+    private FieldSplitFinder splitFinder;
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -102,218 +252,201 @@ public class NodeFieldSplitsJob {
       } catch (Exception e) {
         throw new IOException(e);
       }
-    }
 
-    @Override
-    public void reduce(Text key, Iterable<Text> values, Context context)
-            throws IOException, InterruptedException {
+      objectiveCategoryCount = tree.getObjectiveField().getCategorySet().size();
+      splitFinder = new FieldSplitFinder(tree);
 
-      String[] keyTokens = key.toString().split(",");
-      int fieldId = Integer.valueOf(keyTokens[1]);
-      Field field = tree.getFields().get(fieldId);
-      boolean isCategorical = field.isCategorical();
+      streamingHistograms = Utils.isStreamingNumericHistogram(conf);
+      streamingBins = conf.getInt(Utils.STREAMING_BINS_KEY, Utils.DEFAULT_STREAMING_BINS);
+      bucketCounts = new NumericBucketCounts(conf, tree.getFields().size(), objectiveCategoryCount);
 
-      String result;
-      Text newText;
-      if (isCategorical) {
-        result = reduceForCategorical(field, values);
-        newText = key;
-      } else {
-        double[] rangeValues = new double[2];
-        int leafId = Integer.valueOf(keyTokens[0]);
-        rangeValues[0] = Double.valueOf(keyTokens[2]);
-        rangeValues[1] = Double.valueOf(keyTokens[3]);
-        result = reduceForNumeric(rangeValues, values);
-        newText = new Text(String.valueOf(leafId) + "," + String.valueOf(fieldId));
-      }
+      FileSystem fs = FileSystem.get(conf);
 
-      context.write(NullWritable.get(), new Text(newText.toString() + "," + result));
+      String parentHistogramsPath = conf.get(Utils.PARENT_HISTOGRAMS_KEY);
+      if (parentHistogramsPath != null) {
+        parentHistogramReaders = openHistogramReaders(fs, conf, new Path(parentHistogramsPath));
+      }
 
+      if (Utils.isHistogramSubtraction(conf)) {
+        histogramWriter = createHistogramWriter(context);
+      }
     }
 
-    private String reduceForCategorical(Field field, Iterable<Text> values) {
-
-      int objectiveCategoryCount = tree.getObjectiveField().getCategorySet().size();
-
-      ArrayList<String> objectiveCategories = new ArrayList<String>(tree.getObjectiveField().getCategorySet());
-      HashMap<String, Integer> objectiveCategoryIdMap = tree.createObjectiveCategoryIdMap();
-
-      Long[] originalCounts = new Long[objectiveCategoryCount];
-      Arrays.fill(originalCounts, 0l);
-
-      HashMap<String, Long[]> splitCounts = new HashMap<String, Long[]>();
-      for (String split : field.getCategorySet()) {
-        Long[] countArray = new Long[objectiveCategoryCount];
-        Arrays.fill(countArray, 0l);
-        splitCounts.put(split, countArray);
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      if (histogramWriter != null) {
+        histogramWriter.close();
       }
-
-      Iterator<Text> iter = values.iterator();
-      while (iter.hasNext()) {
-        Text textValue = iter.next();
-        String[] tokens = textValue.toString().split(",");
-        String fieldValue = tokens[0];
-        String targetCategory = tokens[1];
-
-        int categoryId = objectiveCategoryIdMap.get(targetCategory);
-        Long[] counts = splitCounts.get(fieldValue);
-        counts[categoryId]++;
-        originalCounts[categoryId]++;
+      if (parentHistogramReaders != null) {
+        for (MapFile.Reader reader : parentHistogramReaders) {
+          reader.close();
+        }
       }
+      super.cleanup(context);
+    }
 
-      double maxInformationGain = -Double.MAX_VALUE;
-      String bestSplitValue = null;
-      Long[] bestEqualToCounts = null;
-      Long[] bestNotEqualToCounts = null;
+    @Override
+    public void reduce(NodeFieldWritable key, Iterable<HistogramWritable> values, Context context)
+            throws IOException, InterruptedException {
 
-      for (Entry<String, Long[]> candidateSplitEntry : splitCounts.entrySet()) {
-        String candidateSplit = candidateSplitEntry.getKey();
+      int fieldId = key.getFieldId();
+      Field field = tree.getFields().get(fieldId);
 
-        Long[] equalToCounts = candidateSplitEntry.getValue();
-        Long[] notEqualToCounts = Utils.subtractCounts(originalCounts.clone(), equalToCounts);
+      Node node = tree.getNode(key.getNodeId());
 
-        double informationGain = Utils.findInformationGain(originalCounts, equalToCounts, notEqualToCounts);
-        long equalToInstanceCount = Utils.sumCounts(equalToCounts);
-        long notEqualToInstanceCount = Utils.sumCounts(notEqualToCounts);
+      String result;
+      if (!field.isCategorical() && !field.hasGlobalBins() && !field.hasDistinctValues() && streamingHistograms) {
+        result = reduceForStreamingNumeric(values);
+      } else {
+        int binCount;
+        if (field.isCategorical()) {
+          binCount = field.getCategorySet().size();
+        } else if (field.hasGlobalBins()) {
+          binCount = field.getBinCeilings().length;
+        } else if (field.hasDistinctValues()) {
+          binCount = field.getDistinctValues().length;
+        } else {
+          binCount = bucketCounts.get(node, field);
+        }
+        histogram.reset(binCount, objectiveCategoryCount);
 
-        if (informationGain > maxInformationGain
-                && equalToInstanceCount > Utils.DEFAULT_SPLIT_FLOOR
-                && notEqualToInstanceCount > Utils.DEFAULT_SPLIT_FLOOR) {
-          maxInformationGain = informationGain;
-          bestSplitValue = candidateSplit;
-          bestEqualToCounts = equalToCounts.clone();
-          bestNotEqualToCounts = notEqualToCounts.clone();
+        Iterator<HistogramWritable> iter = values.iterator();
+        while (iter.hasNext()) {
+          histogram.add(iter.next());
         }
-      }
 
-      String result = getDefaultReduceResult(objectiveCategories);
+        // Only the node's own histograms are kept for subtraction
+        boolean isSpeculative = key.getBranch() != 0;
+        if (node.isDerived() && !isSpeculative) {
+          histogram.add(readParentHistogram(node, key));
+        }
 
-      if (maxInformationGain != -Double.MAX_VALUE) {
-        StringBuilder builder = new StringBuilder();
+        if (histogramWriter != null && !isSpeculative) {
+          histogram.write(mergedHistogram);
+          histogramWriter.append(key, mergedHistogram);
+        }
 
-        builder.append(String.valueOf(bestSplitValue));
-        builder.append(",");
-        builder.append(String.valueOf(maxInformationGain));
-        builder.append(",");
-        builder.append(Utils.printCounts(objectiveCategories, bestEqualToCounts));
-        builder.append(",");
-        builder.append(Utils.printCounts(objectiveCategories, bestNotEqualToCounts));
-        result = builder.toString();
+        range[0] = key.getRangeMin();
+        range[1] = key.getRangeMax();
+        result = splitFinder.findBestSplit(field, histogram, range);
       }
-      return result;
-    }
 
-    private String reduceForNumeric(double[] rangeValues, Iterable<Text> values) {
+      outputValue.set(String.valueOf(key.getNodeId()) + "," + String.valueOf(key.getBranch()) + ","
+              + String.valueOf(fieldId) + "," + result);
+      context.write(NullWritable.get(), outputValue);
+    }
 
-//      double range = field.getMaxValue() - field.getMinValue();
-      double range = rangeValues[1] - rangeValues[0];
-      int splitCount = Utils.DEFAULT_NUMERIC_SPLITS;
-      int bucketCount = splitCount + 1;
-      double bucketSize = range / (double) bucketCount;
+    private HistogramWritable readParentHistogram(Node node, NodeFieldWritable key) throws IOException {
+      // A derived node shares its parent's buckets, so only the node id differs
+      parentKey.set(node.getParent().getId(), key.getFieldId(), key.getRangeMin(), key.getRangeMax());
 
-      int objectiveCategoryCount = tree.getObjectiveField().getCategorySet().size();
+      if (parentHistogramReaders != null) {
+        for (MapFile.Reader reader : parentHistogramReaders) {
+          if (reader.get(parentKey, parentHistogram) != null) {
+            return parentHistogram;
+          }
+        }
+      }
 
-      ArrayList<String> objectiveCategories = new ArrayList<String>(tree.getObjectiveField().getCategorySet());
-      HashMap<String, Integer> objectiveCategoryIdMap = tree.createObjectiveCategoryIdMap();
+      throw new IOException("No parent histogram found for derived node: " + key);
+    }
 
-      Long[] originalCounts = new Long[objectiveCategoryCount];
-      Arrays.fill(originalCounts, 0l);
+    private static MapFile.Reader[] openHistogramReaders(FileSystem fs, Configuration conf, Path histogramsPath) throws IOException {
+      ArrayList<MapFile.Reader> readers = new ArrayList<MapFile.Reader>();
+      if (fs.exists(histogramsPath)) {
+        for (FileStatus fileStatus : fs.listStatus(histogramsPath)) {
+          if (fileStatus.getPath().getName().startsWith("part")) {
+            readers.add(new MapFile.Reader(fs, fileStatus.getPath().toString(), conf));
+          }
+        }
+      }
+      return readers.toArray(new MapFile.Reader[readers.size()]);
+    }
 
-      TreeMap<Double, Long[]> bucketCounts = new TreeMap<Double, Long[]>();
-      for (int i = 1; i <= bucketCount; i++) {
-        double bucketCeiling = rangeValues[0] + (i * bucketSize);
-        Long[] countArray = new Long[objectiveCategoryCount];
-        Arrays.fill(countArray, 0l);
-        bucketCounts.put(bucketCeiling, countArray);
+    /**
+     * Merges the per class streaming histograms and evaluates the thresholds
+     * that divide the node's values into equally sized parts.  The class counts
+     * on either side of a threshold are estimated from the histograms.
+     */
+    private String reduceForStreamingNumeric(Iterable<HistogramWritable> values) {
+      StreamingHistogram[] classSketches = new StreamingHistogram[objectiveCategoryCount];
+      for (int i = 0; i < objectiveCategoryCount; i++) {
+        classSketches[i] = new StreamingHistogram(streamingBins);
       }
 
-      Iterator<Text> iter = values.iterator();
+      Iterator<HistogramWritable> iter = values.iterator();
       while (iter.hasNext()) {
-        Text textValue = iter.next();
-        String[] tokens = textValue.toString().split(",");
-        double fieldValue = Double.valueOf(tokens[0]);
-        String targetCategory = tokens[1];
-
-        int categoryId = objectiveCategoryIdMap.get(targetCategory);
-        Entry<Double, Long[]> entry = bucketCounts.ceilingEntry(fieldValue);
-        if (entry == null) {
-        } else {
-          Long[] counts = entry.getValue();
-          counts[categoryId]++;
-          originalCounts[categoryId]++;
+        HistogramWritable histogram = iter.next();
+        for (int i = 0; i < objectiveCategoryCount; i++) {
+          classSketches[i].merge(histogram.getSketch(i));
         }
-
       }
 
-      long totalInstanceCount = Utils.sumCounts(originalCounts);
-
-      long lessThanInstanceCount = 0;
-      Long[] lessThanCounts = new Long[objectiveCategoryCount];
-      Arrays.fill(lessThanCounts, 0l);
-
-      long greaterThanInstanceCount = totalInstanceCount;
-      Long[] greaterThanCounts = new Long[objectiveCategoryCount];
-      Arrays.fill(greaterThanCounts, 0l);
-      Utils.addCounts(greaterThanCounts, originalCounts);
+      StreamingHistogram allSketch = new StreamingHistogram(streamingBins);
+      long[] originalCounts = new long[objectiveCategoryCount];
+      for (int i = 0; i < objectiveCategoryCount; i++) {
+        allSketch.merge(classSketches[i]);
+        originalCounts[i] = classSketches[i].getTotalCount();
+      }
 
       double maxInformationGain = -Double.MAX_VALUE;
       double bestSplitValue = -Double.MAX_VALUE;
-      Long[] bestLessThanCounts = null;
-      Long[] bestGreaterThanCounts = null;
-
-      for (Entry<Double, Long[]> candidateSplitEntry : bucketCounts.entrySet()) {
-        double candidateSplit = candidateSplitEntry.getKey();
-        Long[] counts = candidateSplitEntry.getValue();
-
-        lessThanCounts = Utils.addCounts(lessThanCounts, counts);
-        greaterThanCounts = Utils.subtractCounts(greaterThanCounts, counts);
+      long[] lessThanCounts = new long[objectiveCategoryCount];
+      long[] greaterThanCounts = new long[objectiveCategoryCount];
+      long[] bestLessThanCounts = new long[objectiveCategoryCount];
+      long[] bestGreaterThanCounts = new long[objectiveCategoryCount];
+
+      for (double candidateSplit : allSketch.uniform(streamingBins)) {
+        for (int i = 0; i < objectiveCategoryCount; i++) {
+          long lessThanCount = Math.round(classSketches[i].sum(candidateSplit));
+          lessThanCounts[i] = Math.max(0, Math.min(originalCounts[i], lessThanCount));
+          greaterThanCounts[i] = originalCounts[i] - lessThanCounts[i];
+        }
 
         double informationGain = Utils.findInformationGain(originalCounts, lessThanCounts, greaterThanCounts);
-
-        long instanceCount = Utils.sumCounts(counts);
-        greaterThanInstanceCount -= instanceCount;
-        lessThanInstanceCount += instanceCount;
+        long lessThanInstanceCount = Utils.sumCounts(lessThanCounts);
+        long greaterThanInstanceCount = Utils.sumCounts(greaterThanCounts);
 
         if (informationGain > maxInformationGain
                 && lessThanInstanceCount > Utils.DEFAULT_SPLIT_FLOOR
                 && greaterThanInstanceCount > Utils.DEFAULT_SPLIT_FLOOR) {
           maxInformationGain = informationGain;
           bestSplitValue = candidateSplit;
-          bestLessThanCounts = lessThanCounts.clone();
-          bestGreaterThanCounts = greaterThanCounts.clone();
+          System.arraycopy(lessThanCounts, 0, bestLessThanCounts, 0, objectiveCategoryCount);
+          System.arraycopy(greaterThanCounts, 0, bestGreaterThanCounts, 0, objectiveCategoryCount);
         }
       }
 
-      String result = getDefaultReduceResult(objectiveCategories);
-
-      if (maxInformationGain != -Double.MAX_VALUE) {
+      String result;
+      if (maxInformationGain == -Double.MAX_VALUE) {
+        result = splitFinder.printNoSplit(originalCounts);
+      } else {
         StringBuilder builder = new StringBuilder();
 
         builder.append(String.valueOf(bestSplitValue));
         builder.append(",");
         builder.append(String.valueOf(maxInformationGain));
         builder.append(",");
-        builder.append(Utils.printCounts(objectiveCategories, bestLessThanCounts));
+        builder.append(Utils.printCounts(splitFinder.getObjectiveCategories(), bestLessThanCounts));
         builder.append(",");
-        builder.append(Utils.printCounts(objectiveCategories, bestGreaterThanCounts));
+        builder.append(Utils.printCounts(splitFinder.getObjectiveCategories(), bestGreaterThanCounts));
         result = builder.toString();
       }
       return result;
     }
+  }
 
-    private static String getDefaultReduceResult(ArrayList<String> categories) {
-      Long[] counts = new Long[categories.size()];
-      Arrays.fill(counts, 0l);
-
-      StringBuilder builder = new StringBuilder();
-      builder.append(String.valueOf(-Double.MAX_VALUE));
-      builder.append(",");
-      builder.append(String.valueOf(-Double.MAX_VALUE));
-      builder.append(",");
-      builder.append(Utils.printCounts(categories, counts));
-      builder.append(",");
-      builder.append(Utils.printCounts(categories, counts));
-      return builder.toString();
-    }
+  /**
+   * Opens the task's side file for the histograms the next split search may
+   * derive nodes from.  The driver collects these after the job.
+   */
+  static MapFile.Writer createHistogramWriter(TaskInputOutputContext<?, ?, ?, ?> context)
+          throws IOException, InterruptedException {
+    Configuration conf = context.getConfiguration();
+    FileSystem fs = FileSystem.get(conf);
+    String partName = String.format("part-%05d", context.getTaskAttemptID().getTaskID().getId());
+    Path histogramsPath = new Path(FileOutputFormat.getWorkOutputPath(context), Utils.HISTOGRAMS_DIRECTORY);
+    return new MapFile.Writer(conf, fs, new Path(histogramsPath, partName).toString(),
+            NodeFieldWritable.class, HistogramWritable.class, SequenceFile.CompressionType.BLOCK);
   }
 }
@@ -0,0 +1,202 @@
+package hadooptree.job;
+
+import hadooptree.ClassHistogram;
+import hadooptree.NumericBucketCounts;
+import hadooptree.Utils;
+import hadooptree.io.HistogramWritable;
+import hadooptree.io.InstanceWritable;
+import hadooptree.io.NodeFieldWritable;
+import hadooptree.tree.CompiledTree;
+import hadooptree.tree.Field;
+import hadooptree.tree.Node;
+import hadooptree.tree.Tree;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * The "horizontal" layout of the split search: every instance is sent once,
+ * keyed by its node, and a reducer builds the histograms of all of the node's
+ * fields together.  It produces the same results as NodeFieldSplitsJob, but
+ * derives no nodes, so it is cheaper when nodes are small relative to their
+ * histograms.
+ */
+public class NodeInstanceSplitsJob {
+
+  public static class Map extends Mapper<NullWritable, InstanceWritable, IntWritable, InstanceWritable> {
+
+    private Tree tree;
+    private CompiledTree compiledTree;
+    private final IntWritable outputKey = new IntWritable();
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      super.setup(context);
+
+      Configuration conf = context.getConfiguration();
+
+      try {
+        this.tree = Utils.loadTree(conf);
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+      compiledTree = tree.getCompiledTree();
+
+    }
+
+    @Override
+    protected void map(NullWritable key, InstanceWritable value, Context context)
+            throws IOException, InterruptedException {
+
+      value.resolveBins(tree.getFields());
+      int nodeId = compiledTree.route(value);
+
+      if (compiledTree.isLeaf(nodeId) || compiledTree.getTotalCount(nodeId) < Utils.DEFAULT_SUBTREE_FLOOR) {
+        return;
+      }
+
+      outputKey.set(nodeId);
+      context.write(outputKey, value);
+    }
+  }
+
+  public static class Reduce
+          extends Reducer<IntWritable, InstanceWritable, NullWritable, Text> {
+
+    private Tree tree;
+    private int objectiveCategoryCount;
+    private NumericBucketCounts bucketCounts;
+    private FieldSplitFinder splitFinder;
+    private ClassHistogram[] histograms;
+    private double[][] ranges;
+    private MapFile.Writer histogramWriter;
+    private final NodeFieldWritable histogramKey = new NodeFieldWritable();
+    private final HistogramWritable histogramValue = new HistogramWritable();
+    private final Text outputValue = new Text();
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      super.setup(context);
+
+      Configuration conf = context.getConfiguration();
+
+      try {
+        this.tree = Utils.loadTree(conf);
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+
+      objectiveCategoryCount = tree.getObjectiveField().getCategorySet().size();
+      bucketCounts = new NumericBucketCounts(conf, tree.getFields().size(), objectiveCategoryCount);
+      splitFinder = new FieldSplitFinder(tree);
+
+      int fieldCount = tree.getFields().size();
+      histograms = new ClassHistogram[fieldCount];
+      ranges = new double[fieldCount][];
+      for (int fieldId = 0; fieldId < fieldCount; fieldId++) {
+        histograms[fieldId] = new ClassHistogram();
+      }
+
+      // Written on the same grids as the vertical layout, so either layout can
+      // derive nodes from them in the next pass
+      if (Utils.isHistogramSubtraction(conf)) {
+        histogramWriter = NodeFieldSplitsJob.createHistogramWriter(context);
+      }
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      if (histogramWriter != null) {
+        histogramWriter.close();
+      }
+      super.cleanup(context);
+    }
+
+    @Override
+    public void reduce(IntWritable key, Iterable<InstanceWritable> values, Context context)
+            throws IOException, InterruptedException {
+
+      Node node = tree.getNode(key.get());
+      ArrayList<Field> fields = tree.getFields();
+      int objectiveFieldId = tree.getObjectiveFieldIndex();
+
+      for (Field field : fields) {
+        int fieldId = field.getIndex();
+        if (fieldId == objectiveFieldId || node.isFieldExhausted(fieldId)) {
+          continue;
+        }
+
+        int binCount;
+        ranges[fieldId] = null;
+        if (field.isCategorical()) {
+          binCount = field.getCategorySet().size();
+        } else if (field.hasGlobalBins()) {
+          binCount = field.getBinCeilings().length;
+        } else if (field.hasDistinctValues()) {
+          binCount = field.getDistinctValues().length;
+        } else {
+          binCount = bucketCounts.get(node, field);
+          ranges[fieldId] = node.getGridRange(field);
+        }
+        histograms[fieldId].reset(binCount, objectiveCategoryCount);
+      }
+
+      Iterator<InstanceWritable> iter = values.iterator();
+      while (iter.hasNext()) {
+        InstanceWritable instance = iter.next();
+        int objectiveCategoryId = instance.getCategoryId(objectiveFieldId);
+
+        for (Field field : fields) {
+          int fieldId = field.getIndex();
+          if (fieldId == objectiveFieldId || node.isFieldExhausted(fieldId)) {
+            continue;
+          }
+
+          int bin;
+          if (field.isCategorical()) {
+            bin = instance.getCategoryId(fieldId);
+          } else if (field.hasGlobalBins()) {
+            bin = instance.getBin(fieldId);
+          } else if (field.hasDistinctValues()) {
+            bin = field.findDistinctValue(instance.getNumber(fieldId));
+          } else {
+            bin = Utils.findBucket(instance.getNumber(fieldId), ranges[fieldId], histograms[fieldId].getBinCount());
+          }
+
+          if (bin >= 0) {
+            histograms[fieldId].add(bin, objectiveCategoryId, 1);
+          }
+        }
+      }
+
+      for (Field field : fields) {
+        int fieldId = field.getIndex();
+        if (fieldId == objectiveFieldId || node.isFieldExhausted(fieldId)) {
+          continue;
+        }
+
+        double[] range = ranges[fieldId];
+        if (histogramWriter != null) {
+          if (range == null) {
+            histogramKey.set(node.getId(), fieldId, 0, 0);
+          } else {
+            histogramKey.set(node.getId(), fieldId, range[0], range[1]);
+          }
+          histograms[fieldId].write(histogramValue);
+          histogramWriter.append(histogramKey, histogramValue);
+        }
+
+        String result = splitFinder.findBestSplit(field, histograms[fieldId], range);
+        outputValue.set(String.valueOf(node.getId()) + ",0," + String.valueOf(fieldId) + "," + result);
+        context.write(NullWritable.get(), outputValue);
+      }
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package hadooptree.job;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+
+public class NodePartitioner<V> extends WeightedPartitioner<IntWritable, V> {
+
+  private static final int[] NODE_ONLY = new int[]{0};
+
+  @Override
+  protected int[] getFieldIds(Configuration conf) {
+    return NODE_ONLY;
+  }
+
+  @Override
+  public int getPartition(IntWritable key, V value, int numPartitions) {
+    return getPartition(key.get(), 0, numPartitions);
+  }
+}
@@ -0,0 +1,96 @@
+package hadooptree.job;
+
+import hadooptree.CsvTokenizer;
+import hadooptree.Utils;
+import hadooptree.io.InstanceWritable;
+import hadooptree.tree.Field;
+import hadooptree.tree.Tree;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+/**
+ * Converts the CSV input once into decoded instances, with categories
+ * replaced by their ids and globally binned numbers by their bin ids, for the
+ * training jobs to read.
+ */
+public class PrepareInstancesJob {
+
+  public static class Map extends Mapper<LongWritable, Text, NullWritable, InstanceWritable> {
+
+    private Tree tree;
+    private ArrayList<HashMap<Text, Integer>> categoryIdMaps;
+    private final CsvTokenizer tokenizer = new CsvTokenizer();
+    private final Text category = new Text();
+    private final InstanceWritable outputValue = new InstanceWritable();
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      super.setup(context);
+
+      Configuration conf = context.getConfiguration();
+
+      try {
+        this.tree = Utils.loadTree(conf);
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+
+      categoryIdMaps = Utils.createCategoryIdMaps(tree);
+    }
+
+    @Override
+    protected void map(LongWritable key, Text value, Context context)
+            throws IOException, InterruptedException {
+
+      tokenizer.reset(value);
+      if (tokenizer.isBlank()) {
+        return;
+      }
+
+      ArrayList<Field> fields = tree.getFields();
+      outputValue.setFieldCount(fields.size());
+
+      int fieldId = 0;
+      while (tokenizer.next()) {
+        if (fieldId == fields.size()) {
+          // Trailing empty tokens are ignored, as String.split would
+          if (tokenizer.isEmpty()) {
+            continue;
+          }
+          throw new IOException("Instance has more than the expected " + fields.size() + " tokens --- instance: " + value);
+        }
+
+        Field field = fields.get(fieldId);
+        if (field.isCategorical()) {
+          tokenizer.copyTo(category);
+          Integer categoryId = categoryIdMaps.get(fieldId).get(category);
+          if (categoryId == null) {
+            throw new IOException("Unknown category " + category + " for field " + fieldId + " --- instance: " + value);
+          }
+          outputValue.setCategoryId(fieldId, categoryId);
+        } else if (tokenizer.isNumber()) {
+          if (field.hasGlobalBins()) {
+            outputValue.setBin(fieldId, field.findBin(tokenizer.getNumber()));
+          } else {
+            outputValue.setNumber(fieldId, tokenizer.getNumber());
+          }
+        } else {
+          throw new IOException("Field " + fieldId + " is numeric.  Can't accept: " + tokenizer.getString() + " --- instance: " + value);
+        }
+        fieldId++;
+      }
+
+      if (fieldId < fields.size()) {
+        throw new IOException("Instance has " + fieldId + " tokens instead of the expected " + fields.size() + " --- instance: " + value);
+      }
+
+      context.write(NullWritable.get(), outputValue);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package hadooptree.job;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Spreads (node, field) keys over the reducers by the number of records the
+ * driver expects for them rather than by hash.  Keys are placed heaviest
+ * first, each on the least loaded reducer, so a single large node is split
+ * field by field instead of landing on one reducer.  Keys missing from the
+ * plan fall back to hashing.
+ */
+public abstract class WeightedPartitioner<K, V> extends Partitioner<K, V> implements Configurable {
+
+  public static final String NODE_WEIGHTS_KEY = "hadooptree.partition.node.weights";
+  public static final String FIELD_IDS_KEY = "hadooptree.partition.field.ids";
+
+  private Configuration conf;
+  private HashMap<Long, Integer> plan;
+  private int planPartitions;
+
+  public static void setNodeWeights(Configuration conf, Map<Integer, Long> nodeWeights) {
+    StringBuilder builder = new StringBuilder();
+    for (Entry<Integer, Long> entry : nodeWeights.entrySet()) {
+      if (builder.length() > 0) {
+        builder.append(",");
+      }
+      builder.append(entry.getKey());
+      builder.append(":");
+      builder.append(entry.getValue());
+    }
+    conf.set(NODE_WEIGHTS_KEY, builder.toString());
+  }
+
+  public static TreeMap<Integer, Long> getNodeWeights(Configuration conf) {
+    TreeMap<Integer, Long> nodeWeights = new TreeMap<Integer, Long>();
+    String nodeWeightString = conf.get(NODE_WEIGHTS_KEY, "");
+    if (!nodeWeightString.isEmpty()) {
+      for (String nodeToken : nodeWeightString.split(",")) {
+        String[] tokens = nodeToken.split(":");
+        nodeWeights.put(Integer.valueOf(tokens[0]), Long.valueOf(tokens[1]));
+      }
+    }
+    return nodeWeights;
+  }
+
+  public static void setFieldIds(Configuration conf, Collection<Integer> fieldIds) {
+    StringBuilder builder = new StringBuilder();
+    for (Integer fieldId : fieldIds) {
+      if (builder.length() > 0) {
+        builder.append(",");
+      }
+      builder.append(fieldId);
+    }
+    conf.set(FIELD_IDS_KEY, builder.toString());
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.plan = null;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * The fields every planned node is keyed by in this job.
+   */
+  protected abstract int[] getFieldIds(Configuration conf);
+
+  protected int getPartition(int nodeId, int fieldId, int numPartitions) {
+    if (numPartitions <= 1) {
+      return 0;
+    }
+
+    if (plan == null || planPartitions != numPartitions) {
+      plan = createPlan(numPartitions);
+      planPartitions = numPartitions;
+    }
+
+    Integer partition = plan.get(getUnitKey(nodeId, fieldId));
+    if (partition != null) {
+      return partition;
+    }
+
+    return ((nodeId * 31 + fieldId) & Integer.MAX_VALUE) % numPartitions;
+  }
+
+  private HashMap<Long, Integer> createPlan(int numPartitions) {
+    HashMap<Long, Integer> newPlan = new HashMap<Long, Integer>();
+    String nodeWeights = conf == null ? null : conf.get(NODE_WEIGHTS_KEY);
+    if (nodeWeights == null || nodeWeights.isEmpty()) {
+      return newPlan;
+    }
+
+    int[] fieldIds = getFieldIds(conf);
+    String[] nodeTokens = nodeWeights.split(",");
+
+    // Each unit is {weight, nodeId, fieldId}
+    long[][] units = new long[nodeTokens.length * fieldIds.length][];
+    int unitCount = 0;
+    for (String nodeToken : nodeTokens) {
+      String[] tokens = nodeToken.split(":");
+      long nodeId = Long.valueOf(tokens[0]);
+      long weight = Long.valueOf(tokens[1]);
+      for (int fieldId : fieldIds) {
+        units[unitCount++] = new long[]{weight, nodeId, fieldId};
+      }
+    }
+
+    Arrays.sort(units, new Comparator<long[]>() {
+
+      public int compare(long[] a, long[] b) {
+        // Heaviest first, then by node and field so every task agrees
+        if (a[0] != b[0]) {
+          return a[0] > b[0] ? -1 : 1;
+        }
+        if (a[1] != b[1]) {
+          return a[1] < b[1] ? -1 : 1;
+        }
+        if (a[2] != b[2]) {
+          return a[2] < b[2] ? -1 : 1;
+        }
+        return 0;
+      }
+    });
+
+    // Each load is {records, partition}
+    PriorityQueue<long[]> loads = new PriorityQueue<long[]>(numPartitions, new Comparator<long[]>() {
+
+      public int compare(long[] a, long[] b) {
+        if (a[0] != b[0]) {
+          return a[0] < b[0] ? -1 : 1;
+        }
+        if (a[1] != b[1]) {
+          return a[1] < b[1] ? -1 : 1;
+        }
+        return 0;
+      }
+    });
+    for (int i = 0; i < numPartitions; i++) {
+      loads.add(new long[]{0, i});
+    }
+
+    for (long[] unit : units) {
+      long[] load = loads.poll();
+      newPlan.put(getUnitKey((int) unit[1], (int) unit[2]), (int) load[1]);
+      load[0] += unit[0];
+      loads.add(load);
+    }
+
+    return newPlan;
+  }
+
+  private static long getUnitKey(int nodeId, int fieldId) {
+    return ((long) nodeId << 32) | (fieldId & 0xffffffffL);
+  }
+}
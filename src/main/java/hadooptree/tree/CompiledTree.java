@@ -0,0 +1,140 @@
+package hadooptree.tree;
+
+import java.util.Arrays;
+
+/**
+ * A tree flattened for routing instances.  Each node is a slot, indexed by
+ * its id, in parallel primitive arrays holding its split and children, so
+ * routing is a loop over arrays rather than a walk through Node and Split
+ * objects.  The leaf flags and total counts the jobs check for every
+ * instance are taken once here as well.  A compiled tree never changes, so
+ * it is only built for trees that have stopped growing; the Node objects
+ * are still there for everything else.
+ */
+public class CompiledTree {
+
+  private static final int NO_SPLIT = -1;
+
+  private final int rootId;
+  private final Node[] nodes;
+  private final int[] splitFieldIds;
+  private final boolean[] isCategoricalSplits;
+  private final int[] splitCategoryIds;
+  private final double[] splitThresholds;
+  private final int[] trueChildIds;
+  private final int[] falseChildIds;
+  private final boolean[] isLeaves;
+  private final long[] totalCounts;
+  private final String[] predictedClasses;
+
+  public CompiledTree(Tree tree) {
+    Node root = tree.getRoot();
+    int slotCount = getMaxId(root) + 1;
+
+    rootId = root.getId();
+    nodes = new Node[slotCount];
+    splitFieldIds = new int[slotCount];
+    isCategoricalSplits = new boolean[slotCount];
+    splitCategoryIds = new int[slotCount];
+    splitThresholds = new double[slotCount];
+    trueChildIds = new int[slotCount];
+    falseChildIds = new int[slotCount];
+    isLeaves = new boolean[slotCount];
+    totalCounts = new long[slotCount];
+    predictedClasses = new String[slotCount];
+
+    Arrays.fill(splitFieldIds, NO_SPLIT);
+    compile(root);
+  }
+
+  private static int getMaxId(Node node) {
+    int maxId = node.getId();
+    if (node.getSplit() != null) {
+      maxId = Math.max(maxId, getMaxId(node.getTrueChild()));
+      maxId = Math.max(maxId, getMaxId(node.getFalseChild()));
+    }
+    return maxId;
+  }
+
+  private void compile(Node node) {
+    int id = node.getId();
+    nodes[id] = node;
+    isLeaves[id] = node.isLeaf();
+
+    // A snapshot leaves out the counts of nodes no job asks about
+    if (node.getObjectiveCategoryCountMap() == null) {
+      totalCounts[id] = -1;
+    } else {
+      totalCounts[id] = node.getTotalCount();
+      predictedClasses[id] = node.getPredictedClass();
+    }
+
+    Split split = node.getSplit();
+    if (split != null) {
+      splitFieldIds[id] = split.getFieldId();
+      isCategoricalSplits[id] = split.isCategorical();
+      splitCategoryIds[id] = split.getCategoryId();
+      splitThresholds[id] = split.isCategorical() ? Double.NaN : split.getNumber();
+      trueChildIds[id] = node.getTrueChild().getId();
+      falseChildIds[id] = node.getFalseChild().getId();
+
+      compile(node.getTrueChild());
+      compile(node.getFalseChild());
+    }
+  }
+
+  /**
+   * Routes the instance from the root, returning the id of the node it ends
+   * up at.
+   */
+  public int routeFromRoot(Instance instance) {
+    return route(instance, rootId);
+  }
+
+  /**
+   * Continues routing the instance from the node it was last routed to,
+   * like Tree.routeToNode.  An instance at an unknown node starts from the
+   * root.
+   */
+  public int route(Instance instance) {
+    int nodeId = instance.getNodeId();
+    if (nodeId < 0 || nodeId >= nodes.length || nodes[nodeId] == null) {
+      nodeId = rootId;
+    }
+    return route(instance, nodeId);
+  }
+
+  private int route(Instance instance, int nodeId) {
+    int fieldId;
+    while ((fieldId = splitFieldIds[nodeId]) != NO_SPLIT) {
+      boolean isTrue;
+      if (isCategoricalSplits[nodeId]) {
+        isTrue = instance.getCategoryId(fieldId) == splitCategoryIds[nodeId];
+      } else {
+        isTrue = instance.getNumber(fieldId) <= splitThresholds[nodeId];
+      }
+      nodeId = isTrue ? trueChildIds[nodeId] : falseChildIds[nodeId];
+    }
+    return nodeId;
+  }
+
+  public Node getNode(int nodeId) {
+    return nodes[nodeId];
+  }
+
+  public boolean isLeaf(int nodeId) {
+    return isLeaves[nodeId];
+  }
+
+  /**
+   * The node's instance count, or -1 for a node whose counts the tree left
+   * out.
+   */
+  public long getTotalCount(int nodeId) {
+    return totalCounts[nodeId];
+  }
+
+  public String getPredictedClass(int nodeId) {
+    return predictedClasses[nodeId];
+  }
+}
@@ -1,14 +1,19 @@
 package hadooptree.tree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import org.jdom.Element;
 import org.jdom.output.XMLOutputter;
 
 public class Field implements Comparable<Field> {
 
+  public static final int DEFAULT_DISTINCT_VALUE_LIMIT = 1024;
   private int index;
   private Boolean isCategorical;
   private double minValue;
@@ -16,12 +21,20 @@ public class Field implements Comparable<Field> {
   private double sum;
   private long count;
   private TreeMap<String, Long> categoryMap;
+  private String[] categories;
+  private HashMap<String, Integer> categoryIds;
+  private int distinctValueLimit;
+  private TreeSet<Double> distinctValueSet;
+  private double[] distinctValues;
+  private double[] binCeilings;
 
   public Field(int index) {
     this.index = index;
     minValue = Double.MAX_VALUE;
     maxValue = -Double.MAX_VALUE;
     categoryMap = new TreeMap<String, Long>();
+    distinctValueLimit = DEFAULT_DISTINCT_VALUE_LIMIT;
+    distinctValueSet = new TreeSet<Double>();
     isCategorical = null;
     sum = 0;
     count = 0;
@@ -47,6 +60,14 @@ public class Field implements Comparable<Field> {
     return sum / (double) count;
   }
 
+  double getSum() {
+    return sum;
+  }
+
+  long getCount() {
+    return count;
+  }
+
   public Set<String> getCategorySet() {
     return categoryMap.keySet();
   }
@@ -55,6 +76,119 @@ public class Field implements Comparable<Field> {
     return categoryMap;
   }
 
+  /**
+   * The categories in id order.
+   */
+  public ArrayList<String> getCategoryList() {
+    return new ArrayList<String>(Arrays.asList(getCategories()));
+  }
+
+  public HashMap<String, Integer> createCategoryIdMap() {
+    getCategories();
+    return new HashMap<String, Integer>(categoryIds);
+  }
+
+  public int getCategoryCount() {
+    return categoryMap.size();
+  }
+
+  public String getCategory(int categoryId) {
+    return getCategories()[categoryId];
+  }
+
+  /**
+   * The id of a category, or -1 for one the field has never seen.
+   */
+  public int getCategoryId(String category) {
+    getCategories();
+    Integer categoryId = categoryIds.get(category);
+    return categoryId == null ? -1 : categoryId;
+  }
+
+  /**
+   * Categories are numbered in sorted order once the field is complete, and
+   * the ids are kept with the field from then on, so instances, histograms
+   * and splits can all refer to categories by id.
+   */
+  private String[] getCategories() {
+    if (categories == null) {
+      String[] sortedCategories = categoryMap.keySet().toArray(new String[categoryMap.size()]);
+      setCategories(sortedCategories);
+    }
+    return categories;
+  }
+
+  void setCategories(String[] categories) {
+    this.categories = categories;
+    categoryIds = new HashMap<String, Integer>();
+    for (int i = 0; i < categories.length; i++) {
+      categoryIds.put(categories[i], i);
+    }
+  }
+
+  /**
+   * Numeric values are remembered while there are no more than this many
+   * distinct ones, so low cardinality fields can be split on exact values.
+   */
+  public void setDistinctValueLimit(int distinctValueLimit) {
+    this.distinctValueLimit = distinctValueLimit;
+    if (distinctValueSet != null && distinctValueSet.size() > distinctValueLimit) {
+      distinctValueSet = null;
+      distinctValues = null;
+    }
+  }
+
+  /**
+   * Whether every distinct value of this numeric field is known.
+   */
+  public boolean hasDistinctValues() {
+    return isCategorical != null && !isCategorical && distinctValueSet != null && !distinctValueSet.isEmpty();
+  }
+
+  public double[] getDistinctValues() {
+    if (distinctValues == null && distinctValueSet != null) {
+      distinctValues = new double[distinctValueSet.size()];
+      int i = 0;
+      for (Double value : distinctValueSet) {
+        distinctValues[i++] = value;
+      }
+    }
+    return distinctValues;
+  }
+
+  /**
+   * The position of the value among the field's sorted distinct values, or a
+   * negative number if it isn't one of them.
+   */
+  public int findDistinctValue(double value) {
+    return Arrays.binarySearch(getDistinctValues(), value + 0d);
+  }
+
+  /**
+   * Global bins divide a numeric field at fixed quantiles.  Bin i holds the
+   * values above ceiling i - 1 and up to ceiling i, so splitting on a ceiling
+   * sends exactly the lower bins one way.
+   */
+  public void setBinCeilings(double[] binCeilings) {
+    this.binCeilings = binCeilings;
+  }
+
+  public boolean hasGlobalBins() {
+    return isCategorical != null && !isCategorical && binCeilings != null;
+  }
+
+  public double[] getBinCeilings() {
+    return binCeilings;
+  }
+
+  public int findBin(double value) {
+    int bin = Arrays.binarySearch(binCeilings, value + 0d);
+    if (bin < 0) {
+      bin = Math.min(-bin - 1, binCeilings.length - 1);
+    }
+    return bin;
+  }
+
   public String getMostCommonCategory() {
     String mostCommonCategory = null;
     long maxCategoryCount = -Long.MAX_VALUE;
@@ -93,6 +227,20 @@ public class Field implements Comparable<Field> {
       maxValue = Math.max(number, maxValue);
       sum += number;
       this.count++;
+      addDistinctValue(number);
+    }
+  }
+
+  private void addDistinctValue(double number) {
+    if (distinctValueSet == null) {
+      return;
+    }
+
+    // Adding zero turns -0.0 into 0.0 so both count as one value
+    distinctValueSet.add(number + 0d);
+    distinctValues = null;
+    if (distinctValueSet.size() > distinctValueLimit) {
+      distinctValueSet = null;
     }
   }
 
@@ -101,18 +249,34 @@ public class Field implements Comparable<Field> {
     element.setAttribute("index", String.valueOf(index));
     element.setAttribute("isCategorical", String.valueOf(isCategorical));
     if (isCategorical) {
-      for (Entry<String, Long> entry : categoryMap.entrySet()) {
-        String category = entry.getKey();
-        Long categoryCount = entry.getValue();
+      String[] idOrder = getCategories();
+      for (int i = 0; i < idOrder.length; i++) {
         Element categoryElement = new Element("category");
-        categoryElement.setAttribute("value", category);
-        categoryElement.setAttribute("count", String.valueOf(categoryCount));
+        categoryElement.setAttribute("id", String.valueOf(i));
+        categoryElement.setAttribute("value", idOrder[i]);
+        categoryElement.setAttribute("count", String.valueOf(categoryMap.get(idOrder[i])));
         element.addContent(categoryElement);
       }
     } else {
       element.setAttribute("minValue", String.valueOf(minValue));
       element.setAttribute("maxValue", String.valueOf(maxValue));
       element.setAttribute("sum", String.valueOf(sum));
+      if (distinctValueSet != null) {
+        element.setAttribute("distinctCount", String.valueOf(distinctValueSet.size()));
+        for (Double value : distinctValueSet) {
+          Element valueElement = new Element("distinctValue");
+          valueElement.setAttribute("value", String.valueOf(value));
+          element.addContent(valueElement);
+        }
+      }
+      if (binCeilings != null) {
+        element.setAttribute("binCount", String.valueOf(binCeilings.length));
+        for (double ceiling : binCeilings) {
+          Element binElement = new Element("binCeiling");
+          binElement.setAttribute("value", String.valueOf(ceiling));
+          element.addContent(binElement);
+        }
+      }
     }
     element.setAttribute("count", String.valueOf(count));
 
@@ -123,27 +287,34 @@ public class Field implements Comparable<Field> {
     Long categoryCount = categoryMap.get(category);
     if (categoryCount == null) {
       categoryCount = 1l;
+      categories = null;
+      categoryIds = null;
     } else {
       categoryCount++;
     }
     categoryMap.put(category, categoryCount);
   }
 
-  private void setCategoryEntry(String category, Long categoryCount) {
+  void setCategoryEntry(String category, Long categoryCount) {
     categoryMap.put(category, categoryCount);
   }
 
-  private void setNumericInfo(double minValue, double maxValue, double sum) {
+  void setNumericInfo(double minValue, double maxValue, double sum) {
     this.minValue = minValue;
     this.maxValue = maxValue;
     this.sum = sum;
   }
 
-  private void setCount(long count) {
+  void setDistinctValueSet(TreeSet<Double> distinctValueSet) {
+    this.distinctValueSet = distinctValueSet;
+    this.distinctValues = null;
+  }
+
+  void setCount(long count) {
     this.count = count;
   }
 
-  private void setCategorical(boolean isCategorical) {
+  void setCategorical(boolean isCategorical) {
     this.isCategorical = isCategorical;
   }
 
@@ -159,17 +330,43 @@ public class Field implements Comparable<Field> {
 
     if (isCategorical) {
       List<Element> children = (List<Element>) element.getChildren("category");
-      for (Element child : children) {
+      String[] categories = new String[children.size()];
+      for (int i = 0; i < categories.length; i++) {
+        Element child = children.get(i);
         String categoryValue = child.getAttributeValue("value");
         Long categoryCount = Long.valueOf(child.getAttributeValue("count"));
         field.setCategoryEntry(categoryValue, categoryCount);
+
+        // Fields written before ids were stored number them in order
+        String idString = child.getAttributeValue("id");
+        categories[idString == null ? i : Integer.valueOf(idString)] = categoryValue;
       }
+      field.setCategories(categories);
     } else {
       double minValue = Double.valueOf(element.getAttributeValue("minValue"));
       double maxValue = Double.valueOf(element.getAttributeValue("maxValue"));
       double sum = Double.valueOf(element.getAttributeValue("sum"));
 
       field.setNumericInfo(minValue, maxValue, sum);
+
+      TreeSet<Double> distinctValueSet = null;
+      if (element.getAttributeValue("distinctCount") != null) {
+        distinctValueSet = new TreeSet<Double>();
+        List<Element> children = (List<Element>) element.getChildren("distinctValue");
+        for (Element child : children) {
+          distinctValueSet.add(Double.valueOf(child.getAttributeValue("value")));
+        }
+      }
+      field.setDistinctValueSet(distinctValueSet);
+
+      if (element.getAttributeValue("binCount") != null) {
+        List<Element> children = (List<Element>) element.getChildren("binCeiling");
+        double[] binCeilings = new double[children.size()];
+        for (int i = 0; i < binCeilings.length; i++) {
+          binCeilings[i] = Double.valueOf(children.get(i).getAttributeValue("value"));
+        }
+        field.setBinCeilings(binCeilings);
+      }
     }
 
     return field;
@@ -212,6 +409,12 @@ public class Field implements Comparable<Field> {
     if (this.categoryMap != other.categoryMap && (this.categoryMap == null || !this.categoryMap.equals(other.categoryMap))) {
       return false;
     }
+    if (this.distinctValueSet != other.distinctValueSet && (this.distinctValueSet == null || !this.distinctValueSet.equals(other.distinctValueSet))) {
+      return false;
+    }
+    if (!Arrays.equals(this.binCeilings, other.binCeilings)) {
+      return false;
+    }
     return true;
   }
 
@@ -0,0 +1,145 @@
+package hadooptree.tree;
+
+import java.util.ArrayList;
+
+/**
+ * An instance as the tree evaluates it: every field is a category id, a
+ * global bin id or a number, held in primitive arrays.  A binned field's
+ * number is its bin's ceiling once resolveBins has been called, which every
+ * split on the field treats like the original value.  An instance also
+ * remembers the node it was last routed to.  A field can be dropped once it
+ * is exhausted at that node, since neither the node nor its descendants
+ * will look at it again.  Instances are meant to be reused, so the backing
+ * arrays only grow.
+ */
+public class Instance {
+
+  private static final int DROPPED = -2;
+
+  protected int nodeId;
+  protected int fieldCount;
+  protected int[] categoryIds;
+  protected int[] bins;
+  protected double[] numbers;
+
+  public Instance() {
+    categoryIds = new int[0];
+    bins = new int[0];
+    numbers = new double[0];
+  }
+
+  public Instance(Instance other) {
+    this();
+    set(other);
+  }
+
+  public void set(Instance other) {
+    nodeId = other.nodeId;
+    setFieldCount(other.fieldCount);
+    System.arraycopy(other.categoryIds, 0, categoryIds, 0, fieldCount);
+    System.arraycopy(other.bins, 0, bins, 0, fieldCount);
+    System.arraycopy(other.numbers, 0, numbers, 0, fieldCount);
+  }
+
+  public int getNodeId() {
+    return nodeId;
+  }
+
+  public void setNodeId(int nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  public void setFieldCount(int fieldCount) {
+    this.fieldCount = fieldCount;
+    if (categoryIds.length < fieldCount) {
+      categoryIds = new int[fieldCount];
+      bins = new int[fieldCount];
+      numbers = new double[fieldCount];
+    }
+  }
+
+  public int getFieldCount() {
+    return fieldCount;
+  }
+
+  public void setCategoryId(int fieldId, int categoryId) {
+    categoryIds[fieldId] = categoryId;
+    bins[fieldId] = -1;
+    numbers[fieldId] = Double.NaN;
+  }
+
+  public void setBin(int fieldId, int bin) {
+    categoryIds[fieldId] = -1;
+    bins[fieldId] = bin;
+    numbers[fieldId] = Double.NaN;
+  }
+
+  public void setNumber(int fieldId, double number) {
+    categoryIds[fieldId] = -1;
+    bins[fieldId] = -1;
+    numbers[fieldId] = number;
+  }
+
+  public void dropField(int fieldId) {
+    categoryIds[fieldId] = -1;
+    bins[fieldId] = DROPPED;
+    numbers[fieldId] = Double.NaN;
+  }
+
+  /**
+   * Gives every binned field its bin's ceiling as its number.
+   */
+  public void resolveBins(ArrayList<Field> fields) {
+    for (int i = 0; i < fieldCount; i++) {
+      if (bins[i] >= 0) {
+        numbers[i] = fields.get(i).getBinCeilings()[bins[i]];
+      }
+    }
+  }
+
+  public boolean isCategorical(int fieldId) {
+    return categoryIds[fieldId] >= 0;
+  }
+
+  public int getCategoryId(int fieldId) {
+    return categoryIds[fieldId];
+  }
+
+  public boolean isBinned(int fieldId) {
+    return bins[fieldId] >= 0;
+  }
+
+  public boolean isDropped(int fieldId) {
+    return bins[fieldId] == DROPPED;
+  }
+
+  public int getBin(int fieldId) {
+    return bins[fieldId];
+  }
+
+  public double getNumber(int fieldId) {
+    return numbers[fieldId];
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < fieldCount; i++) {
+      if (i > 0) {
+        builder.append(",");
+      }
+      if (isCategorical(i)) {
+        builder.append("#");
+        builder.append(categoryIds[i]);
+      } else if (isBinned(i)) {
+        builder.append("@");
+        builder.append(bins[i]);
+      } else if (isDropped(i)) {
+        builder.append("-");
+      } else {
+        builder.append(numbers[i]);
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -1,6 +1,7 @@
 package hadooptree.tree;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
@@ -14,7 +15,10 @@ public class Node {
   private Node trueChild;
   private Node falseChild;
   private boolean isLeaf;
+  private boolean isDerived;
   private Split split;
+  private ArrayList<Split> candidateSplits;
+  private BitSet exhaustedFields;
   private TreeMap<String, Long> objectiveCategoryCountMap;
 
   public Node(int id, Node parent) {
@@ -32,9 +36,25 @@ public class Node {
     return parent;
   }
 
+  public Node getParent() {
+    return parent;
+  }
+
+  public Node getSibling() {
+    if (parent == null) {
+      return null;
+    }
+    return parent.trueChild == this ? parent.falseChild : parent.trueChild;
+  }
+
+  public Split getSplit() {
+    return split;
+  }
+
   public void merge(Node subtree, HashMap<Integer, Node> nodeMap) {
     this.isLeaf = subtree.isLeaf;
     if (!this.isLeaf) {
+      this.exhaustedFields = null;
       this.split = subtree.split;
       this.trueChild = subtree.trueChild;
       this.falseChild = subtree.falseChild;
@@ -47,6 +67,27 @@ public class Node {
     }
   }
 
+  void addToNodeMap(HashMap<Integer, Node> nodeMap) {
+    nodeMap.put(id, this);
+    if (split != null) {
+      trueChild.addToNodeMap(nodeMap);
+      falseChild.addToNodeMap(nodeMap);
+    }
+  }
+
+  void resolveCategoryIds(ArrayList<Field> fields) {
+    if (split != null) {
+      split.resolveCategoryId(fields);
+      trueChild.resolveCategoryIds(fields);
+      falseChild.resolveCategoryIds(fields);
+    }
+    if (candidateSplits != null) {
+      for (Split candidateSplit : candidateSplits) {
+        candidateSplit.resolveCategoryId(fields);
+      }
+    }
+  }
+
   private void assignId(HashMap<Integer, Node> nodeMap) {
     if (id == -1) {
       id = nodeMap.size();
@@ -83,6 +124,49 @@ public class Node {
     return range;
   }
 
+  /**
+   * Fills in the children's rows of the tree's range table from this node's
+   * row.  As in getRange, the root's own split doesn't narrow its children.
+   */
+  void addRanges(double[] rangeTable, int fieldCount) {
+    if (split == null) {
+      return;
+    }
+
+    int rowLength = fieldCount * 2;
+    int trueRow = trueChild.id * rowLength;
+    int falseRow = falseChild.id * rowLength;
+    System.arraycopy(rangeTable, id * rowLength, rangeTable, trueRow, rowLength);
+    System.arraycopy(rangeTable, id * rowLength, rangeTable, falseRow, rowLength);
+
+    if (parent != null && !split.isCategorical()) {
+      int column = split.getFieldId() * 2;
+      rangeTable[trueRow + column + 1] = Math.min(rangeTable[trueRow + column + 1], split.getNumber());
+      rangeTable[falseRow + column] = Math.max(rangeTable[falseRow + column], split.getNumber());
+    }
+
+    trueChild.addRanges(rangeTable, fieldCount);
+    falseChild.addRanges(rangeTable, fieldCount);
+  }
+
+  /**
+   * Finds the node whose range and size define the numeric buckets for the
+   * field.  Nodes normally bucket over their own range, but a derived node
+   * keeps its parent's buckets so its histograms can be computed by
+   * subtraction.
+   */
+  public Node getGridNode(Field field) {
+    if (isDerived && parent != null) {
+      return parent.getGridNode(field);
+    }
+    return this;
+  }
+
+  public double[] getGridRange(Field field) {
+    Node gridNode = getGridNode(field);
+    return gridNode.getRange(gridNode, field);
+  }
+
   public long getTotalCount() {
     long count = 0;
     for (Long categoryCount : objectiveCategoryCountMap.values()) {
@@ -95,6 +179,10 @@ public class Node {
     return objectiveCategoryCountMap;
   }
 
+  public void setObjectiveCategoryCountMap(TreeMap<String, Long> objectiveCategoryCountMap) {
+    this.objectiveCategoryCountMap = objectiveCategoryCountMap;
+  }
+
   public String getPredictedClass() {
     String predictedClass = null;
     long maxCount = 0;
@@ -120,6 +208,14 @@ public class Node {
     }
   }
 
+  public Node evalToNode(Instance instance) {
+    Node node = this;
+    while (node.split != null) {
+      node = node.split.eval(instance) ? node.trueChild : node.falseChild;
+    }
+    return node;
+  }
+
   public void setIsLeaf(boolean isLeaf) {
     this.isLeaf = isLeaf;
   }
@@ -128,6 +224,18 @@ public class Node {
     return isLeaf;
   }
 
+  public void setIsDerived(boolean isDerived) {
+    this.isDerived = isDerived;
+  }
+
+  /**
+   * Whether the split search derives this node's histograms from its parent's
+   * histograms minus its sibling's, rather than from its own instances.
+   */
+  public boolean isDerived() {
+    return isDerived;
+  }
+
   public int getId() {
     return id;
   }
@@ -140,12 +248,79 @@ public class Node {
     this.split = split;
     this.trueChild = trueChild;
     this.falseChild = falseChild;
+    this.candidateSplits = null;
+
+    // Fields exhausted here are exhausted for every descendant
+    if (exhaustedFields != null) {
+      trueChild.addExhaustedFields(exhaustedFields);
+      falseChild.addExhaustedFields(exhaustedFields);
+      this.exhaustedFields = null;
+    }
+  }
+
+  public Node getTrueChild() {
+    return trueChild;
+  }
+
+  public Node getFalseChild() {
+    return falseChild;
+  }
+
+  /**
+   * Splits this node will probably be given, so the split search can also
+   * gather the histograms of the children each of them would create.
+   */
+  public ArrayList<Split> getCandidateSplits() {
+    return candidateSplits;
+  }
+
+  public void setCandidateSplits(ArrayList<Split> candidateSplits) {
+    this.candidateSplits = candidateSplits;
+  }
+
+  /**
+   * Fields that can no longer split this node or its descendants, so the
+   * split search skips them.  Only unsplit nodes keep them.
+   */
+  public BitSet getExhaustedFields() {
+    return exhaustedFields;
+  }
+
+  public boolean isFieldExhausted(int fieldId) {
+    return exhaustedFields != null && exhaustedFields.get(fieldId);
+  }
+
+  public void addExhaustedField(int fieldId) {
+    if (exhaustedFields == null) {
+      exhaustedFields = new BitSet();
+    }
+    exhaustedFields.set(fieldId);
+  }
+
+  public void addExhaustedFields(BitSet fieldIds) {
+    if (exhaustedFields == null) {
+      exhaustedFields = new BitSet();
+    }
+    exhaustedFields.or(fieldIds);
   }
 
   public Element toElement(String nodeName) {
     Element element = new Element(nodeName);
     element.setAttribute("id", String.valueOf(id));
     element.setAttribute("isLeaf", String.valueOf(isLeaf));
+    if (isDerived) {
+      element.setAttribute("isDerived", String.valueOf(isDerived));
+    }
+    if (!isLeaf && exhaustedFields != null && !exhaustedFields.isEmpty()) {
+      StringBuilder fieldIds = new StringBuilder();
+      for (int fieldId = exhaustedFields.nextSetBit(0); fieldId >= 0; fieldId = exhaustedFields.nextSetBit(fieldId + 1)) {
+        if (fieldIds.length() > 0) {
+          fieldIds.append(",");
+        }
+        fieldIds.append(fieldId);
+      }
+      element.setAttribute("exhaustedFields", fieldIds.toString());
+    }
 
     if (objectiveCategoryCountMap != null) {
       Element classCounts = new Element("classCounts");
@@ -160,6 +335,14 @@ public class Node {
       element.addContent(classCounts);
     }
 
+    if (candidateSplits != null && !candidateSplits.isEmpty()) {
+      Element candidates = new Element("candidateSplits");
+      for (Split candidateSplit : candidateSplits) {
+        candidates.addContent(candidateSplit.toElement());
+      }
+      element.addContent(candidates);
+    }
+
     if (split != null) {
       element.addContent(split.toElement());
       element.addContent(trueChild.toElement("trueChild"));
@@ -191,6 +374,26 @@ public class Node {
     boolean isLeaf = Boolean.valueOf(element.getAttributeValue("isLeaf"));
     node.setIsLeaf(isLeaf);
 
+    boolean isDerived = Boolean.valueOf(element.getAttributeValue("isDerived"));
+    node.setIsDerived(isDerived);
+
+    String exhaustedFields = element.getAttributeValue("exhaustedFields");
+    if (exhaustedFields != null) {
+      for (String fieldId : exhaustedFields.split(",")) {
+        node.addExhaustedField(Integer.valueOf(fieldId));
+      }
+    }
+
+    Element candidatesElement = element.getChild("candidateSplits");
+    if (candidatesElement != null) {
+      ArrayList<Split> candidateSplits = new ArrayList<Split>();
+      List<Element> children = (List<Element>) candidatesElement.getChildren("split");
+      for (Element candidateElement : children) {
+        candidateSplits.add(Split.fromElement(candidateElement));
+      }
+      node.setCandidateSplits(candidateSplits);
+    }
+
     Element splitElement = element.getChild("split");
     if (splitElement != null) {
       Split split = Split.fromElement(splitElement);
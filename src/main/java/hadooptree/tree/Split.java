@@ -9,19 +9,29 @@ public class Split {
   private final boolean isCategorical;
   private final String category;
   private final Double number;
+  private int categoryId;
+  private final double threshold;
 
   public Split(int fieldId, String category) {
+    this(fieldId, category, -1);
+  }
+
+  public Split(int fieldId, String category, int categoryId) {
     this.fieldId = fieldId;
     this.category = category;
+    this.categoryId = categoryId;
     isCategorical = true;
     number = null;
+    threshold = Double.NaN;
   }
 
   public Split(int fieldId, Double number) {
     this.fieldId = fieldId;
     this.number = number;
+    this.threshold = number;
     isCategorical = false;
     category = null;
+    categoryId = -1;
   }
 
   public int getFieldId() {
@@ -31,7 +41,37 @@ public class Split {
   public Double getNumber() {
     return number;
   }
-  
+
+  public boolean isCategorical() {
+    return isCategorical;
+  }
+
+  public String getCategory() {
+    return category;
+  }
+
+  /**
+   * The category's id in its field, which is what decoded instances hold.
+   * The category string is only kept for writing the tree out.
+   */
+  public int getCategoryId() {
+    return categoryId;
+  }
+
+  void resolveCategoryId(ArrayList<Field> fields) {
+    if (isCategorical && categoryId < 0) {
+      categoryId = fields.get(fieldId).getCategoryId(category);
+    }
+  }
+
+  public boolean eval(Instance instance) {
+    if (isCategorical) {
+      return instance.getCategoryId(fieldId) == categoryId;
+    } else {
+      return instance.getNumber(fieldId) <= threshold;
+    }
+  }
+
   public boolean eval(ArrayList<Object> instance) {
     boolean result;
     Object fieldValue = instance.get(fieldId);
@@ -49,6 +89,9 @@ public class Split {
     element.setAttribute("isCategorical", String.valueOf(isCategorical));
     if (isCategorical) {
       element.setAttribute("equalTo", category);
+      if (categoryId >= 0) {
+        element.setAttribute("categoryId", String.valueOf(categoryId));
+      }
     } else {
       element.setAttribute("lessOrEqualTo", String.valueOf(number));
     }
@@ -63,7 +106,8 @@ public class Split {
     Split split;
     if (isCategorical) {
       String category = element.getAttributeValue("equalTo");
-      split = new Split(fieldId, category);
+      String categoryIdString = element.getAttributeValue("categoryId");
+      split = new Split(fieldId, category, categoryIdString == null ? -1 : Integer.valueOf(categoryIdString));
     } else {
       String numberString = element.getAttributeValue("lessOrEqualTo");
       double splitNumber = Double.valueOf(numberString);
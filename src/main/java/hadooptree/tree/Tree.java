@@ -1,6 +1,8 @@
 package hadooptree.tree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import org.jdom.Element;
@@ -11,6 +13,9 @@ public class Tree {
   private final int objectiveFieldIndex;
   private final ArrayList<Field> fields;
   private Node root;
+  private HashMap<Integer, Node> nodeMap;
+  private CompiledTree compiledTree;
+  private double[] rangeTable;
 
   public Tree(Node root, ArrayList<Field> fields, int objectiveFieldIndex) throws Exception {
     this.objectiveFieldIndex = objectiveFieldIndex;
@@ -21,6 +26,12 @@ public class Tree {
     if (!objectiveField.isCategorical()) {
       throw new Exception("Numeric objective not supported yet");
     }
+
+    resolveCategoryIds();
+  }
+
+  public Node getRoot() {
+    return root;
   }
 
   public ArrayList<Field> getFields() {
@@ -39,13 +50,95 @@ public class Tree {
     return root.evalToNode(instance);
   }
 
-  public HashMap<String, Integer> createObjectiveCategoryIdMap() {
-    ArrayList<String> objectiveCategories = new ArrayList<String>(this.getObjectiveField().getCategorySet());
-    HashMap<String, Integer> categoryIdMap = new HashMap<String, Integer>();
-    for (int i = 0; i < objectiveCategories.size(); i++) {
-      categoryIdMap.put(objectiveCategories.get(i), i);
+  public Node evalToNode(Instance instance) {
+    return root.evalToNode(instance);
+  }
+
+  /**
+   * Continues routing the instance from the node it was last routed to, so
+   * only the splits added since are evaluated.  Nodes keep their ids as the
+   * tree grows, and an instance at an unknown node starts from the root.
+   */
+  public Node routeToNode(Instance instance) {
+    Node node = getNode(instance.getNodeId());
+    if (node == null) {
+      node = root;
     }
-    return categoryIdMap;
+    return node.evalToNode(instance);
+  }
+
+  /**
+   * Gives categorical splits without a category id, such as those of trees
+   * written before splits kept their ids, the id from their field.
+   */
+  public void resolveCategoryIds() {
+    root.resolveCategoryIds(fields);
+  }
+
+  /**
+   * Looks up a node by id.  The lookup table is built on first use, so this
+   * is meant for trees that are no longer growing.
+   */
+  public Node getNode(int id) {
+    if (nodeMap == null) {
+      nodeMap = new HashMap<Integer, Node>();
+      root.addToNodeMap(nodeMap);
+    }
+    return nodeMap.get(id);
+  }
+
+  /**
+   * The tree flattened for routing.  Like the node lookup, it is built on
+   * first use, for trees that are no longer growing.
+   */
+  public CompiledTree getCompiledTree() {
+    if (compiledTree == null) {
+      compiledTree = new CompiledTree(this);
+    }
+    return compiledTree;
+  }
+
+  /**
+   * The lower bound the splits above the node put on the numeric field, the
+   * same as Node.getRange, but read from a table built on first use rather
+   * than worked out up the parent chain.  Categorical fields have no range
+   * and give NaN.
+   */
+  public double getRangeMin(int nodeId, int fieldId) {
+    return getRangeTable()[(nodeId * fields.size() + fieldId) * 2];
+  }
+
+  public double getRangeMax(int nodeId, int fieldId) {
+    return getRangeTable()[(nodeId * fields.size() + fieldId) * 2 + 1];
+  }
+
+  /**
+   * The minimum and maximum of every field at every node, a row of pairs per
+   * node id.
+   */
+  private double[] getRangeTable() {
+    if (rangeTable == null) {
+      getNode(0);
+      int fieldCount = fields.size();
+      double[] table = new double[(Collections.max(nodeMap.keySet()) + 1) * fieldCount * 2];
+      Arrays.fill(table, Double.NaN);
+
+      int row = root.getId() * fieldCount * 2;
+      for (Field field : fields) {
+        if (!field.isCategorical()) {
+          table[row + field.getIndex() * 2] = field.getMinValue();
+          table[row + field.getIndex() * 2 + 1] = field.getMaxValue();
+        }
+      }
+      root.addRanges(table, fieldCount);
+
+      rangeTable = table;
+    }
+    return rangeTable;
+  }
+
+  public HashMap<String, Integer> createObjectiveCategoryIdMap() {
+    return getObjectiveField().createCategoryIdMap();
   }
 
   public Element toElement() {
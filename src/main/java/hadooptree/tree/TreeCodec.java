@@ -0,0 +1,338 @@
+package hadooptree.tree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The binary model format the driver hands to every task, so loading the
+ * tree is one pass over a stream instead of an XML parse.  After a magic
+ * number and a format version come the objective field index, the fields
+ * (categories in id order with their counts, numeric summaries, distinct
+ * values and bin ceilings), and then the nodes in pre-order.  Each node is
+ * its id and flags, its class counts keyed by objective category id, its
+ * candidate splits and exhausted fields when it is unsplit, and its split
+ * followed by its two children when it is split.  Categorical splits are
+ * written as category ids, since the field holds the categories.
+ *
+ * A routing snapshot is the same format with only what the tasks use: the
+ * routing structure in full, but class counts only for the frontier and the
+ * nodes whose buckets it shares, and no category counts or field totals.
+ * Those read back as zero, or as missing class counts, so a snapshot only
+ * serves the jobs, and the full tree is written once the build is done.
+ */
+public class TreeCodec {
+
+  public static final int MAGIC = 0x48545245;
+  public static final int VERSION = 2;
+  private static final int SNAPSHOT = 1;
+  private static final int LEAF = 1;
+  private static final int DERIVED = 2;
+  private static final int SPLIT = 4;
+  private static final int CLASS_COUNTS = 8;
+  private static final int CANDIDATE_SPLITS = 16;
+  private static final int EXHAUSTED_FIELDS = 32;
+
+  public static void write(Tree tree, DataOutput out) throws IOException {
+    write(tree, out, false);
+  }
+
+  public static void writeSnapshot(Tree tree, DataOutput out) throws IOException {
+    write(tree, out, true);
+  }
+
+  private static void write(Tree tree, DataOutput out, boolean isSnapshot) throws IOException {
+    out.writeInt(MAGIC);
+    WritableUtils.writeVInt(out, VERSION);
+    WritableUtils.writeVInt(out, isSnapshot ? SNAPSHOT : 0);
+    WritableUtils.writeVInt(out, tree.getObjectiveFieldIndex());
+
+    ArrayList<Field> fields = tree.getFields();
+    WritableUtils.writeVInt(out, fields.size());
+    for (Field field : fields) {
+      writeField(field, out, isSnapshot);
+    }
+
+    HashSet<Integer> countedNodeIds = null;
+    if (isSnapshot) {
+      countedNodeIds = new HashSet<Integer>();
+      addCountedNodes(tree.getRoot(), countedNodeIds);
+    }
+    writeNode(tree.getRoot(), tree.getObjectiveField(), countedNodeIds, out);
+  }
+
+  public static Tree read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a binary tree");
+    }
+    int version = WritableUtils.readVInt(in);
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported tree format version: " + version);
+    }
+    // Version 1 trees were always complete
+    int options = version >= 2 ? WritableUtils.readVInt(in) : 0;
+    boolean isSnapshot = (options & SNAPSHOT) != 0;
+    int objectiveFieldIndex = WritableUtils.readVInt(in);
+
+    int fieldCount = WritableUtils.readVInt(in);
+    ArrayList<Field> fields = new ArrayList<Field>(fieldCount);
+    for (int i = 0; i < fieldCount; i++) {
+      fields.add(readField(in, isSnapshot));
+    }
+
+    Node root = readNode(in, null, fields, fields.get(objectiveFieldIndex));
+    try {
+      return new Tree(root, fields, objectiveFieldIndex);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Whether the bytes start like a binary tree rather than an XML one.
+   */
+  public static boolean isBinaryTree(byte[] header) {
+    if (header.length < 4) {
+      return false;
+    }
+    int magic = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+    return magic == MAGIC;
+  }
+
+  private static void writeField(Field field, DataOutput out, boolean isSnapshot) throws IOException {
+    WritableUtils.writeVInt(out, field.getIndex());
+    if (!isSnapshot) {
+      WritableUtils.writeVLong(out, field.getCount());
+    }
+    out.writeBoolean(field.isCategorical());
+
+    if (field.isCategorical()) {
+      WritableUtils.writeVInt(out, field.getCategoryCount());
+      for (int categoryId = 0; categoryId < field.getCategoryCount(); categoryId++) {
+        String category = field.getCategory(categoryId);
+        Text.writeString(out, category);
+        if (!isSnapshot) {
+          WritableUtils.writeVLong(out, field.getCategoryMap().get(category));
+        }
+      }
+    } else {
+      out.writeDouble(field.getMinValue());
+      out.writeDouble(field.getMaxValue());
+      if (!isSnapshot) {
+        out.writeDouble(field.getSum());
+      }
+
+      // Counts are written plus one, so zero means there are none
+      double[] distinctValues = field.getDistinctValues();
+      WritableUtils.writeVInt(out, distinctValues == null ? 0 : distinctValues.length + 1);
+      if (distinctValues != null) {
+        for (double value : distinctValues) {
+          out.writeDouble(value);
+        }
+      }
+
+      double[] binCeilings = field.getBinCeilings();
+      WritableUtils.writeVInt(out, binCeilings == null ? 0 : binCeilings.length + 1);
+      if (binCeilings != null) {
+        for (double ceiling : binCeilings) {
+          out.writeDouble(ceiling);
+        }
+      }
+    }
+  }
+
+  private static Field readField(DataInput in, boolean isSnapshot) throws IOException {
+    Field field = new Field(WritableUtils.readVInt(in));
+    field.setCount(isSnapshot ? 0 : WritableUtils.readVLong(in));
+    boolean isCategorical = in.readBoolean();
+    field.setCategorical(isCategorical);
+
+    if (isCategorical) {
+      String[] categories = new String[WritableUtils.readVInt(in)];
+      for (int categoryId = 0; categoryId < categories.length; categoryId++) {
+        categories[categoryId] = Text.readString(in);
+        field.setCategoryEntry(categories[categoryId], isSnapshot ? 0L : WritableUtils.readVLong(in));
+      }
+      field.setCategories(categories);
+    } else {
+      double minValue = in.readDouble();
+      double maxValue = in.readDouble();
+      double sum = isSnapshot ? 0 : in.readDouble();
+      field.setNumericInfo(minValue, maxValue, sum);
+
+      TreeSet<Double> distinctValueSet = null;
+      int distinctCount = WritableUtils.readVInt(in) - 1;
+      if (distinctCount >= 0) {
+        distinctValueSet = new TreeSet<Double>();
+        for (int i = 0; i < distinctCount; i++) {
+          distinctValueSet.add(in.readDouble());
+        }
+      }
+      field.setDistinctValueSet(distinctValueSet);
+
+      int binCount = WritableUtils.readVInt(in) - 1;
+      if (binCount >= 0) {
+        double[] binCeilings = new double[binCount];
+        for (int i = 0; i < binCount; i++) {
+          binCeilings[i] = in.readDouble();
+        }
+        field.setBinCeilings(binCeilings);
+      }
+    }
+
+    return field;
+  }
+
+  /**
+   * The frontier nodes, whose sizes the jobs check, and the nodes that set
+   * the buckets of derived frontier nodes.
+   */
+  private static void addCountedNodes(Node node, HashSet<Integer> countedNodeIds) {
+    if (node.getSplit() != null) {
+      addCountedNodes(node.getTrueChild(), countedNodeIds);
+      addCountedNodes(node.getFalseChild(), countedNodeIds);
+    } else if (!node.isLeaf()) {
+      countedNodeIds.add(node.getId());
+      while (node.isDerived() && node.getParent() != null) {
+        node = node.getParent();
+        countedNodeIds.add(node.getId());
+      }
+    }
+  }
+
+  private static void writeNode(Node node, Field objectiveField, HashSet<Integer> countedNodeIds, DataOutput out)
+          throws IOException {
+    TreeMap<String, Long> classCounts = node.getObjectiveCategoryCountMap();
+    if (countedNodeIds != null && !countedNodeIds.contains(node.getId())) {
+      classCounts = null;
+    }
+    ArrayList<Split> candidateSplits = node.getCandidateSplits();
+    BitSet exhaustedFields = node.getExhaustedFields();
+    boolean hasExhaustedFields = !node.isLeaf() && exhaustedFields != null && !exhaustedFields.isEmpty();
+
+    int flags = 0;
+    flags |= node.isLeaf() ? LEAF : 0;
+    flags |= node.isDerived() ? DERIVED : 0;
+    flags |= node.getSplit() != null ? SPLIT : 0;
+    flags |= classCounts != null ? CLASS_COUNTS : 0;
+    flags |= candidateSplits != null && !candidateSplits.isEmpty() ? CANDIDATE_SPLITS : 0;
+    flags |= hasExhaustedFields ? EXHAUSTED_FIELDS : 0;
+
+    WritableUtils.writeVInt(out, node.getId());
+    WritableUtils.writeVInt(out, flags);
+
+    if ((flags & CLASS_COUNTS) != 0) {
+      WritableUtils.writeVInt(out, classCounts.size());
+      for (Entry<String, Long> entry : classCounts.entrySet()) {
+        int categoryId = objectiveField.getCategoryId(entry.getKey());
+        if (categoryId < 0) {
+          throw new IOException("Unknown objective category: " + entry.getKey());
+        }
+        WritableUtils.writeVInt(out, categoryId);
+        WritableUtils.writeVLong(out, entry.getValue());
+      }
+    }
+
+    if ((flags & CANDIDATE_SPLITS) != 0) {
+      WritableUtils.writeVInt(out, candidateSplits.size());
+      for (Split candidateSplit : candidateSplits) {
+        writeSplit(candidateSplit, out);
+      }
+    }
+
+    if ((flags & EXHAUSTED_FIELDS) != 0) {
+      WritableUtils.writeVInt(out, exhaustedFields.cardinality());
+      for (int fieldId = exhaustedFields.nextSetBit(0); fieldId >= 0; fieldId = exhaustedFields.nextSetBit(fieldId + 1)) {
+        WritableUtils.writeVInt(out, fieldId);
+      }
+    }
+
+    if ((flags & SPLIT) != 0) {
+      writeSplit(node.getSplit(), out);
+      writeNode(node.getTrueChild(), objectiveField, countedNodeIds, out);
+      writeNode(node.getFalseChild(), objectiveField, countedNodeIds, out);
+    }
+  }
+
+  private static Node readNode(DataInput in, Node parent, ArrayList<Field> fields, Field objectiveField) throws IOException {
+    int id = WritableUtils.readVInt(in);
+    int flags = WritableUtils.readVInt(in);
+
+    Node node;
+    if ((flags & CLASS_COUNTS) != 0) {
+      TreeMap<String, Long> classCounts = new TreeMap<String, Long>();
+      int size = WritableUtils.readVInt(in);
+      for (int i = 0; i < size; i++) {
+        String category = objectiveField.getCategory(WritableUtils.readVInt(in));
+        classCounts.put(category, WritableUtils.readVLong(in));
+      }
+      node = new Node(id, parent, classCounts);
+    } else {
+      node = new Node(id, parent);
+    }
+    node.setIsLeaf((flags & LEAF) != 0);
+    node.setIsDerived((flags & DERIVED) != 0);
+
+    if ((flags & CANDIDATE_SPLITS) != 0) {
+      int size = WritableUtils.readVInt(in);
+      ArrayList<Split> candidateSplits = new ArrayList<Split>(size);
+      for (int i = 0; i < size; i++) {
+        candidateSplits.add(readSplit(in, fields));
+      }
+      node.setCandidateSplits(candidateSplits);
+    }
+
+    if ((flags & EXHAUSTED_FIELDS) != 0) {
+      int size = WritableUtils.readVInt(in);
+      for (int i = 0; i < size; i++) {
+        node.addExhaustedField(WritableUtils.readVInt(in));
+      }
+    }
+
+    if ((flags & SPLIT) != 0) {
+      Split split = readSplit(in, fields);
+      Node trueChild = readNode(in, node, fields, objectiveField);
+      Node falseChild = readNode(in, node, fields, objectiveField);
+      node.addSplit(split, trueChild, falseChild);
+    }
+
+    return node;
+  }
+
+  /**
+   * A categorical split is its category id plus one, or zero and the
+   * category itself when the field doesn't know it.
+   */
+  private static void writeSplit(Split split, DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, split.getFieldId());
+    out.writeBoolean(split.isCategorical());
+    if (split.isCategorical()) {
+      WritableUtils.writeVInt(out, split.getCategoryId() + 1);
+      if (split.getCategoryId() < 0) {
+        Text.writeString(out, split.getCategory());
+      }
+    } else {
+      out.writeDouble(split.getNumber());
+    }
+  }
+
+  private static Split readSplit(DataInput in, ArrayList<Field> fields) throws IOException {
+    int fieldId = WritableUtils.readVInt(in);
+    if (in.readBoolean()) {
+      int categoryId = WritableUtils.readVInt(in) - 1;
+      if (categoryId < 0) {
+        return new Split(fieldId, Text.readString(in));
+      }
+      return new Split(fieldId, fields.get(fieldId).getCategory(categoryId), categoryId);
+    }
+    return new Split(fieldId, in.readDouble());
+  }
+}
@@ -0,0 +1,98 @@
+package hadooptree;
+
+import hadooptree.tree.CompiledTree;
+import hadooptree.tree.Field;
+import hadooptree.tree.Instance;
+import hadooptree.tree.Node;
+import hadooptree.tree.Split;
+import hadooptree.tree.Tree;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for CompiledTree and the tree's range table
+ */
+public class CompiledTreeTest {
+
+  @Test
+  public void testRouting() throws Exception {
+    Tree tree = createTree();
+    CompiledTree compiledTree = tree.getCompiledTree();
+
+    Instance instance = new Instance();
+    instance.setFieldCount(3);
+    instance.setCategoryId(0, 0);
+    for (double number : new double[]{1, 2}) {
+      for (int categoryId = -1; categoryId < 2; categoryId++) {
+        instance.setNumber(1, number);
+        instance.setCategoryId(2, categoryId);
+        instance.setNodeId(0);
+        Assert.assertSame(tree.evalToNode(instance), compiledTree.getNode(compiledTree.routeFromRoot(instance)));
+
+        // Routing resumes from the node the instance was last routed to
+        instance.setNodeId(2);
+        Assert.assertSame(tree.routeToNode(instance), compiledTree.getNode(compiledTree.route(instance)));
+      }
+    }
+
+    Assert.assertTrue(compiledTree.isLeaf(1));
+    Assert.assertFalse(compiledTree.isLeaf(4));
+    Assert.assertEquals(4L, compiledTree.getTotalCount(2));
+    Assert.assertEquals(-1L, compiledTree.getTotalCount(4));
+    Assert.assertEquals("no", compiledTree.getPredictedClass(3));
+  }
+
+  @Test
+  public void testRanges() throws Exception {
+    Tree tree = createTree();
+    Field numericField = tree.getFields().get(1);
+
+    for (int nodeId = 0; nodeId < 7; nodeId++) {
+      double[] range = tree.getNode(nodeId).getRange(tree.getNode(nodeId), numericField);
+      Assert.assertEquals(range[0], tree.getRangeMin(nodeId, 1), 0);
+      Assert.assertEquals(range[1], tree.getRangeMax(nodeId, 1), 0);
+      Assert.assertTrue(Double.isNaN(tree.getRangeMin(nodeId, 2)));
+    }
+    Assert.assertEquals(1.8, tree.getRangeMax(5, 1), 0);
+    Assert.assertEquals(1.8, tree.getRangeMin(6, 1), 0);
+  }
+
+  private static Tree createTree() throws Exception {
+    Field classField = new Field(0);
+    classField.addCategoricalValue("yes");
+    classField.addCategoricalValue("no");
+    Field numericField = new Field(1);
+    numericField.addNumericValue(1);
+    numericField.addNumericValue(2);
+    Field categoricalField = new Field(2);
+    categoricalField.addCategoricalValue("red");
+    categoricalField.addCategoricalValue("blue");
+
+    ArrayList<Field> fields = new ArrayList<Field>();
+    fields.add(classField);
+    fields.add(numericField);
+    fields.add(categoricalField);
+
+    Node root = new Node(0, null, counts(3, 2));
+    Node low = new Node(1, root, counts(1, 0));
+    Node high = new Node(2, root, counts(2, 2));
+    Node red = new Node(3, high, counts(0, 2));
+    Node blue = new Node(4, high);
+    root.addSplit(new Split(1, 1.5), low, high);
+    high.addSplit(new Split(2, "red"), red, blue);
+    blue.addSplit(new Split(1, 1.8), new Node(5, blue), new Node(6, blue));
+    low.setIsLeaf(true);
+    red.setIsLeaf(true);
+
+    return new Tree(root, fields, 0);
+  }
+
+  private static TreeMap<String, Long> counts(long yes, long no) {
+    TreeMap<String, Long> counts = new TreeMap<String, Long>();
+    counts.put("yes", yes);
+    counts.put("no", no);
+    return counts;
+  }
+}
@@ -0,0 +1,51 @@
+package hadooptree;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for CsvTokenizer
+ */
+public class CsvTokenizerTest {
+
+  @Test
+  public void testTokens() throws Exception {
+    CsvTokenizer tokenizer = new CsvTokenizer();
+    tokenizer.reset(new Text(" apple, red ,,9,"));
+
+    String[] expected = {"apple", "red", "", "9", ""};
+    for (String token : expected) {
+      Assert.assertTrue(tokenizer.next());
+      Assert.assertEquals(token, tokenizer.getString());
+    }
+    Assert.assertFalse(tokenizer.next());
+
+    tokenizer.reset(new Text(" \t"));
+    Assert.assertTrue(tokenizer.isBlank());
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    String[] tokens = {"0.1", "-4.35", "1e-5", "+3", "-0", ".5", "5.", "12345678901234567890",
+      "1e400", "1.5d", "NaN", "-Infinity", "0x1p3", "1e", "e5", "-", ".", "red", "Nope", "9 lives"};
+
+    CsvTokenizer tokenizer = new CsvTokenizer();
+    for (String token : tokens) {
+      tokenizer.reset(new Text(token));
+      tokenizer.next();
+
+      Double expected;
+      try {
+        expected = Double.valueOf(token);
+      } catch (NumberFormatException e) {
+        expected = null;
+      }
+
+      Assert.assertEquals(token, expected != null, tokenizer.isNumber());
+      if (expected != null) {
+        Assert.assertEquals(token, Double.doubleToLongBits(expected), Double.doubleToLongBits(tokenizer.getNumber()));
+      }
+    }
+  }
+}
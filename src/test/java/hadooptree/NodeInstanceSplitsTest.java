@@ -0,0 +1,305 @@
+package hadooptree;
+
+import hadooptree.io.HistogramWritable;
+import hadooptree.io.InstanceWritable;
+import hadooptree.io.NodeFieldWritable;
+import hadooptree.job.NodeFieldSplitsJob;
+import hadooptree.job.NodeInstanceSplitsJob;
+import hadooptree.tree.Field;
+import hadooptree.tree.Node;
+import hadooptree.tree.Split;
+import hadooptree.tree.Tree;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import static org.mockito.Mockito.*;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit test for NodeInstanceSplitsJob, against the field keyed layout of
+ * NodeFieldSplitsJob
+ */
+public class NodeInstanceSplitsTest {
+
+  private static final int INSTANCE_COUNT = 1000;
+
+  private File workDirectory;
+  private Configuration conf;
+  private Path outputPath;
+  private Path workPath;
+  private ArrayList<InstanceWritable> instances;
+
+  @Before
+  public void setUp() throws Exception {
+    workDirectory = File.createTempFile("instancesplits", "");
+    workDirectory.delete();
+    workDirectory.mkdirs();
+
+    // The class mostly follows field 1, and a little field 3
+    String[] colors = {"blue", "green", "red"};
+    Random random = new Random(42);
+    double[][] numbers = new double[INSTANCE_COUNT][];
+    String[][] categories = new String[INSTANCE_COUNT][];
+    Field classField = new Field(0);
+    Field bucketedField = new Field(1);
+    bucketedField.setDistinctValueLimit(16);
+    Field colorField = new Field(2);
+    Field distinctField = new Field(3);
+    for (int i = 0; i < INSTANCE_COUNT; i++) {
+      double bucketed = random.nextDouble() * 10;
+      double distinct = random.nextInt(3);
+      String label = bucketed + distinct + random.nextGaussian() > 6 ? "a" : "b";
+      numbers[i] = new double[]{0, bucketed, 0, distinct};
+      categories[i] = new String[]{label, null, colors[random.nextInt(colors.length)], null};
+
+      classField.addCategoricalValue(label);
+      bucketedField.addNumericValue(bucketed);
+      colorField.addCategoricalValue(categories[i][2]);
+      distinctField.addNumericValue(distinct);
+    }
+
+    ArrayList<Field> fields = new ArrayList<Field>();
+    fields.add(classField);
+    fields.add(bucketedField);
+    fields.add(colorField);
+    fields.add(distinctField);
+
+    // Counts above the subtree floor, so the split search takes both children
+    Node root = new Node(0, null, getCounts(20000, 20000));
+    root.addSplit(new Split(2, "red"), new Node(1, root, getCounts(8000, 8000)),
+            new Node(2, root, getCounts(12000, 12000)));
+    Tree tree = new Tree(root, fields, 0);
+
+    instances = new ArrayList<InstanceWritable>();
+    for (int i = 0; i < INSTANCE_COUNT; i++) {
+      InstanceWritable instance = new InstanceWritable();
+      instance.setFieldCount(fields.size());
+      for (Field field : fields) {
+        int fieldId = field.getIndex();
+        if (field.isCategorical()) {
+          instance.setCategoryId(fieldId, field.getCategoryId(categories[i][fieldId]));
+        } else {
+          instance.setNumber(fieldId, numbers[i][fieldId]);
+        }
+      }
+      instances.add(instance);
+    }
+
+    Path treePath = new Path(new File(workDirectory, "tree.bin").getPath());
+    conf = new Configuration();
+    Utils.writeTree(tree, FileSystem.getLocal(conf), treePath);
+    DistributedCache.addCacheFile(FileSystem.getLocal(conf).makeQualified(treePath).toUri(), conf);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtil.fullyDelete(workDirectory);
+  }
+
+  @Test
+  public void testSameSplitsAsFieldLayout() throws Exception {
+    conf.setBoolean(Utils.HISTOGRAM_SUBTRACTION_KEY, false);
+
+    ArrayList<String> fieldLayoutSplits = runFieldLayout();
+    ArrayList<String> instanceLayoutSplits = runInstanceLayout();
+
+    // Both children, with a split for each of the three fields
+    Assert.assertEquals(6, fieldLayoutSplits.size());
+    Assert.assertEquals(fieldLayoutSplits, instanceLayoutSplits);
+
+    int foundSplits = 0;
+    for (String line : instanceLayoutSplits) {
+      if (Double.valueOf(line.split(",")[4]) > 0) {
+        foundSplits++;
+      }
+    }
+    Assert.assertTrue(foundSplits > 0);
+  }
+
+  @Test
+  public void testHistogramsInKeyOrder() throws Exception {
+    conf.setBoolean(Utils.HISTOGRAM_SUBTRACTION_KEY, true);
+
+    // MapFile.Writer refuses keys out of order, so these would throw
+    outputPath = new Path(new File(workDirectory, "field").getPath());
+    runFieldLayout();
+    ArrayList<NodeFieldWritable> fieldLayoutKeys = readHistogramKeys();
+    outputPath = new Path(new File(workDirectory, "instance").getPath());
+    runInstanceLayout();
+    ArrayList<NodeFieldWritable> instanceLayoutKeys = readHistogramKeys();
+    Assert.assertEquals(6, instanceLayoutKeys.size());
+    for (int i = 1; i < instanceLayoutKeys.size(); i++) {
+      Assert.assertTrue(instanceLayoutKeys.get(i - 1).compareTo(instanceLayoutKeys.get(i)) < 0);
+    }
+
+    // The same grids, so either layout can derive nodes from the other's
+    Assert.assertEquals(fieldLayoutKeys, instanceLayoutKeys);
+  }
+
+  private ArrayList<String> runFieldLayout() throws Exception {
+    TreeMap<WritableComparable, ArrayList<Writable>> histograms = runMapper(new NodeFieldSplitsJob.Map());
+    return runReducer(new NodeFieldSplitsJob.Reduce(), histograms);
+  }
+
+  private ArrayList<String> runInstanceLayout() throws Exception {
+    TreeMap<WritableComparable, ArrayList<Writable>> nodeInstances = runMapper(new NodeInstanceSplitsJob.Map());
+    return runReducer(new NodeInstanceSplitsJob.Reduce(), nodeInstances);
+  }
+
+  private ArrayList<NodeFieldWritable> readHistogramKeys() throws Exception {
+    Path histogramsPath = new Path(workPath, Utils.HISTOGRAMS_DIRECTORY);
+    MapFile.Reader reader = new MapFile.Reader(FileSystem.getLocal(conf),
+            new Path(histogramsPath, "part-00000").toString(), conf);
+    ArrayList<NodeFieldWritable> keys = new ArrayList<NodeFieldWritable>();
+    NodeFieldWritable key = new NodeFieldWritable();
+    HistogramWritable value = new HistogramWritable();
+    while (reader.next(key, value)) {
+      NodeFieldWritable keyCopy = new NodeFieldWritable();
+      keyCopy.set(key);
+      keys.add(keyCopy);
+    }
+    reader.close();
+    return keys;
+  }
+
+  /**
+   * Maps the instances, and groups the output by key as the shuffle would.
+   */
+  @SuppressWarnings("unchecked")
+  private TreeMap<WritableComparable, ArrayList<Writable>> runMapper(Mapper mapper) throws Exception {
+    final TreeMap<WritableComparable, ArrayList<Writable>> output = new TreeMap<WritableComparable, ArrayList<Writable>>();
+    final Iterator<InstanceWritable> input = instances.iterator();
+    final InstanceWritable[] current = new InstanceWritable[1];
+
+    Mapper.Context context = mock(Mapper.Context.class);
+    when(context.getConfiguration()).thenReturn(conf);
+    when(context.nextKeyValue()).thenAnswer(new Answer<Boolean>() {
+
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        if (!input.hasNext()) {
+          return false;
+        }
+        // The mappers may change the instance
+        current[0] = (InstanceWritable) copy(input.next());
+        return true;
+      }
+    });
+    when(context.getCurrentValue()).thenAnswer(new Answer<InstanceWritable>() {
+
+      public InstanceWritable answer(InvocationOnMock invocation) throws Throwable {
+        return current[0];
+      }
+    });
+    doAnswer(new Answer<Object>() {
+
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        WritableComparable key = (WritableComparable) copy((Writable) invocation.getArguments()[0]);
+        ArrayList<Writable> values = output.get(key);
+        if (values == null) {
+          values = new ArrayList<Writable>();
+          output.put(key, values);
+        }
+        values.add(copy((Writable) invocation.getArguments()[1]));
+        return null;
+      }
+    }).when(context).write(any(), any());
+
+    mapper.run(context);
+    return output;
+  }
+
+  /**
+   * Reduces the grouped map output in key order, and returns the split lines
+   * sorted.
+   */
+  @SuppressWarnings("unchecked")
+  private ArrayList<String> runReducer(Reducer reducer, TreeMap<WritableComparable, ArrayList<Writable>> input)
+          throws Exception {
+    final ArrayList<String> output = new ArrayList<String>();
+    final Iterator<Entry<WritableComparable, ArrayList<Writable>>> groups = input.entrySet().iterator();
+    final Object[] current = new Object[1];
+
+    Reducer.Context context = mock(Reducer.Context.class);
+    when(context.getConfiguration()).thenReturn(conf);
+    when(context.getTaskAttemptID()).thenReturn(new TaskAttemptID("test", 1, false, 0, 0));
+    if (outputPath != null) {
+      FileOutputCommitter committer = new FileOutputCommitter(outputPath, context);
+      when(context.getOutputCommitter()).thenReturn(committer);
+      workPath = committer.getWorkPath();
+    }
+    when(context.nextKey()).thenAnswer(new Answer<Boolean>() {
+
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        if (!groups.hasNext()) {
+          return false;
+        }
+        current[0] = groups.next();
+        return true;
+      }
+    });
+    when(context.getCurrentKey()).thenAnswer(new Answer<Object>() {
+
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Entry<WritableComparable, ArrayList<Writable>>) current[0]).getKey();
+      }
+    });
+    when(context.getValues()).thenAnswer(new Answer<Object>() {
+
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Entry<WritableComparable, ArrayList<Writable>>) current[0]).getValue();
+      }
+    });
+    doAnswer(new Answer<Object>() {
+
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        output.add(invocation.getArguments()[1].toString());
+        return null;
+      }
+    }).when(context).write(any(), any());
+
+    reducer.run(context);
+    Collections.sort(output);
+    return output;
+  }
+
+  private static Writable copy(Writable writable) throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    writable.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+
+    Writable copy = writable.getClass().newInstance();
+    copy.readFields(in);
+    return copy;
+  }
+
+  private static TreeMap<String, Long> getCounts(long a, long b) {
+    TreeMap<String, Long> counts = new TreeMap<String, Long>();
+    counts.put("a", a);
+    counts.put("b", b);
+    return counts;
+  }
+}
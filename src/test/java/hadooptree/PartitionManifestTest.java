@@ -0,0 +1,190 @@
+package hadooptree;
+
+import hadooptree.io.InstanceWritable;
+import hadooptree.job.FilterInstancesJob;
+import hadooptree.job.WeightedPartitioner;
+import hadooptree.tree.Field;
+import hadooptree.tree.Node;
+import hadooptree.tree.Split;
+import hadooptree.tree.Tree;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import static org.mockito.Mockito.*;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit test for the partition manifest FilterInstancesJob writes, and how
+ * TreeBuilder picks the next job's input from it
+ */
+public class PartitionManifestTest {
+
+  private File workDirectory;
+  private Configuration conf;
+  private HashMap<Integer, Node> nodeMap;
+
+  @Before
+  public void setUp() throws Exception {
+    workDirectory = File.createTempFile("manifest", "");
+    workDirectory.delete();
+    workDirectory.mkdirs();
+
+    ArrayList<Field> fields = new ArrayList<Field>();
+    Field classField = new Field(0);
+    classField.addCategoricalValue("a");
+    classField.addCategoricalValue("b");
+    fields.add(classField);
+    Field numericField = new Field(1);
+    for (int i = 0; i < 10; i++) {
+      numericField.addNumericValue(i);
+    }
+    fields.add(numericField);
+
+    // The low node is a leaf, so only the other two reach the partitions
+    Node root = new Node(0, null, getCounts(6, 4));
+    Node low = new Node(1, root, getCounts(2, 0));
+    Node middle = new Node(3, root, getCounts(2, 2));
+    Node high = new Node(4, root, getCounts(2, 2));
+    Node rest = new Node(2, root, getCounts(4, 4));
+    root.addSplit(new Split(1, 1.0), low, rest);
+    rest.addSplit(new Split(1, 5.0), middle, high);
+    low.setIsLeaf(true);
+    Tree tree = new Tree(root, fields, 0);
+
+    nodeMap = new HashMap<Integer, Node>();
+    for (Node node : new Node[]{root, low, rest, middle, high}) {
+      nodeMap.put(node.getId(), node);
+    }
+
+    Path treePath = new Path(new File(workDirectory, "tree.bin").getPath());
+    conf = new Configuration();
+    Utils.writeTree(tree, FileSystem.getLocal(conf), treePath);
+    DistributedCache.addCacheFile(FileSystem.getLocal(conf).makeQualified(treePath).toUri(), conf);
+
+    // One node to a partition
+    TreeMap<Integer, Long> nodeWeights = new TreeMap<Integer, Long>();
+    nodeWeights.put(3, 4L);
+    nodeWeights.put(4, 4L);
+    WeightedPartitioner.setNodeWeights(conf, nodeWeights);
+    conf.setLong(Utils.PARTITION_RECORDS_KEY, 4);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtil.fullyDelete(workDirectory);
+  }
+
+  @Test
+  public void testManifestRoundTrip() throws Exception {
+    Path dataPath = new Path(new File(workDirectory, "data").getPath());
+    Path outputPath = runFilter(dataPath, 0);
+    runFilter(dataPath, 1);
+
+    HashMap<Integer, ArrayList<Path>> partitions = TreeBuilder.readPartitionManifest(conf, outputPath);
+    Assert.assertEquals(2, partitions.size());
+    Assert.assertFalse(partitions.containsKey(1));
+    Assert.assertEquals(getPaths(outputPath, "partition-m-00000-00000", "partition-m-00001-00000"),
+            new TreeSet<Path>(partitions.get(3)));
+    Assert.assertEquals(getPaths(outputPath, "partition-m-00000-00001", "partition-m-00001-00001"),
+            new TreeSet<Path>(partitions.get(4)));
+    for (ArrayList<Path> nodePartitions : partitions.values()) {
+      for (Path partition : nodePartitions) {
+        Assert.assertTrue(FileSystem.getLocal(conf).exists(partition));
+      }
+    }
+
+    // The middle node split after the filter ran, so its children aren't in
+    // the manifest and are read from its partitions
+    Node middle = nodeMap.get(3);
+    Node middleLow = new Node(5, middle);
+    Node middleHigh = new Node(6, middle);
+    middle.addSplit(new Split(1, 3.0), middleLow, middleHigh);
+    nodeMap.put(middleLow.getId(), middleLow);
+    nodeMap.put(middleHigh.getId(), middleHigh);
+
+    Path[] inputPaths = TreeBuilder.selectInputPaths(dataPath, partitions, nodeMap, Arrays.asList(5, 6));
+    Assert.assertEquals(new TreeSet<Path>(partitions.get(3)), new TreeSet<Path>(Arrays.asList(inputPaths)));
+
+    inputPaths = TreeBuilder.selectInputPaths(dataPath, partitions, nodeMap, Arrays.asList(4, 6));
+    Assert.assertEquals(4, inputPaths.length);
+
+    // Nodes none of the partitions cover, or no manifest at all, read the
+    // whole data directory
+    inputPaths = TreeBuilder.selectInputPaths(dataPath, partitions, nodeMap, Arrays.asList(5, 7));
+    Assert.assertEquals(Arrays.asList(dataPath), Arrays.asList(inputPaths));
+    inputPaths = TreeBuilder.selectInputPaths(dataPath, null, nodeMap, Arrays.asList(5));
+    Assert.assertEquals(Arrays.asList(dataPath), Arrays.asList(inputPaths));
+  }
+
+  /**
+   * Runs and commits one filter task over the instances, returning the job's
+   * output path.
+   */
+  @SuppressWarnings("unchecked")
+  private Path runFilter(Path outputPath, int taskId) throws Exception {
+    final ArrayList<InstanceWritable> instances = new ArrayList<InstanceWritable>();
+    for (int i = 0; i < 10; i++) {
+      InstanceWritable instance = new InstanceWritable();
+      instance.setFieldCount(2);
+      instance.setCategoryId(0, i % 2);
+      instance.setNumber(1, i);
+      instances.add(instance);
+    }
+    final int[] current = {-1};
+
+    Mapper.Context context = mock(Mapper.Context.class);
+    when(context.getConfiguration()).thenReturn(conf);
+    when(context.getTaskAttemptID()).thenReturn(new TaskAttemptID("test", 1, true, taskId, 0));
+    FileOutputCommitter committer = new FileOutputCommitter(outputPath, context);
+    when(context.getOutputCommitter()).thenReturn(committer);
+    when(context.nextKeyValue()).thenAnswer(new Answer<Boolean>() {
+
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return ++current[0] < instances.size();
+      }
+    });
+    when(context.getCurrentKey()).thenReturn(NullWritable.get());
+    when(context.getCurrentValue()).thenAnswer(new Answer<InstanceWritable>() {
+
+      public InstanceWritable answer(InvocationOnMock invocation) throws Throwable {
+        return instances.get(current[0]);
+      }
+    });
+
+    new FilterInstancesJob.Map().run(context);
+    committer.commitTask(context);
+    return outputPath;
+  }
+
+  private static TreeSet<Path> getPaths(Path parent, String... names) {
+    TreeSet<Path> paths = new TreeSet<Path>();
+    for (String name : names) {
+      paths.add(new Path(parent, name));
+    }
+    return paths;
+  }
+
+  private static TreeMap<String, Long> getCounts(long a, long b) {
+    TreeMap<String, Long> counts = new TreeMap<String, Long>();
+    counts.put("a", a);
+    counts.put("b", b);
+    return counts;
+  }
+}
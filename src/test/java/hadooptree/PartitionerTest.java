@@ -0,0 +1,43 @@
+package hadooptree;
+
+import hadooptree.io.NodeFieldWritable;
+import hadooptree.job.NodeFieldPartitioner;
+import hadooptree.job.WeightedPartitioner;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.TreeMap;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for the load aware partitioners
+ */
+public class PartitionerTest {
+
+  @Test
+  public void testHeavyNodeIsSpreadByField() throws Exception {
+    TreeMap<Integer, Long> nodeWeights = new TreeMap<Integer, Long>();
+    nodeWeights.put(1, 1000000L);
+    nodeWeights.put(2, 1000L);
+    nodeWeights.put(3, 1000L);
+
+    Configuration conf = new Configuration();
+    WeightedPartitioner.setNodeWeights(conf, nodeWeights);
+    WeightedPartitioner.setFieldIds(conf, Arrays.asList(0, 1, 2, 3));
+
+    NodeFieldPartitioner partitioner = new NodeFieldPartitioner();
+    partitioner.setConf(conf);
+
+    HashSet<Integer> heavyPartitions = new HashSet<Integer>();
+    for (int fieldId = 0; fieldId < 4; fieldId++) {
+      int partition = partitioner.getPartition(new NodeFieldWritable(1, fieldId, 0, 0), null, 4);
+      heavyPartitions.add(partition);
+    }
+    Assert.assertEquals(4, heavyPartitions.size());
+
+    // Keys outside the plan still land on a valid partition
+    int partition = partitioner.getPartition(new NodeFieldWritable(9, 0, 0, 0), null, 4);
+    Assert.assertTrue(partition >= 0 && partition < 4);
+  }
+}
@@ -0,0 +1,129 @@
+package hadooptree;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for StreamingHistogram
+ */
+public class StreamingHistogramTest {
+
+  @Test
+  public void testExactWhileUnderCapacity() throws Exception {
+    StreamingHistogram histogram = new StreamingHistogram(8);
+    for (int i = 0; i < 100; i++) {
+      histogram.add(i % 4);
+    }
+
+    Assert.assertTrue(histogram.isExact());
+    Assert.assertEquals(4, histogram.getBinCount());
+    Assert.assertEquals(50d, histogram.sum(1), 0d);
+    double[] midpoints = histogram.uniform(8);
+    Assert.assertEquals(3, midpoints.length);
+    Assert.assertEquals(0.5, midpoints[0], 0d);
+    Assert.assertEquals(2.5, midpoints[2], 0d);
+  }
+
+  @Test
+  public void testMergedQuantiles() throws Exception {
+    Random random = new Random(42);
+    StreamingHistogram left = new StreamingHistogram(64);
+    StreamingHistogram right = new StreamingHistogram(64);
+    for (int i = 0; i < 100000; i++) {
+      double value = random.nextDouble();
+      if (i % 2 == 0) {
+        left.add(value);
+      } else {
+        right.add(value);
+      }
+    }
+
+    StreamingHistogram merged = new StreamingHistogram(64);
+    merged.merge(left);
+    merged.merge(right);
+
+    Assert.assertFalse(merged.isExact());
+    Assert.assertTrue(merged.getBinCount() <= 64);
+    Assert.assertEquals(100000L, merged.getTotalCount());
+    Assert.assertEquals(25000d, merged.sum(0.25), 1000d);
+
+    double[] quartiles = merged.uniform(4);
+    Assert.assertEquals(3, quartiles.length);
+    Assert.assertEquals(0.5, quartiles[1], 0.02);
+  }
+
+  @Test
+  public void testMergesClosestFirst() throws Exception {
+    Random random = new Random(7);
+    double[] values = new double[100];
+    StreamingHistogram histogram = new StreamingHistogram(50);
+    for (int i = 0; i < values.length; i++) {
+      // Rounded, so there are equal gaps to break ties between
+      values[i] = Math.round(random.nextDouble() * 400) / 4d;
+      histogram.add(values[i]);
+    }
+
+    // Merges the closest pair one at a time, as the paper describes
+    Arrays.sort(values);
+    double[] positions = new double[values.length];
+    long[] counts = new long[values.length];
+    int size = 0;
+    for (double value : values) {
+      if (size > 0 && positions[size - 1] == value) {
+        counts[size - 1]++;
+      } else {
+        positions[size] = value;
+        counts[size] = 1;
+        size++;
+      }
+    }
+    while (size > 50) {
+      int closest = 0;
+      for (int i = 1; i < size - 1; i++) {
+        if (positions[i + 1] - positions[i] < positions[closest + 1] - positions[closest]) {
+          closest = i;
+        }
+      }
+      long mergedCount = counts[closest] + counts[closest + 1];
+      positions[closest] = (positions[closest] * counts[closest]
+              + positions[closest + 1] * counts[closest + 1]) / mergedCount;
+      counts[closest] = mergedCount;
+      System.arraycopy(positions, closest + 2, positions, closest + 1, size - closest - 2);
+      System.arraycopy(counts, closest + 2, counts, closest + 1, size - closest - 2);
+      size--;
+    }
+
+    Assert.assertEquals(size, histogram.getBinCount());
+    for (int bin = 0; bin < size; bin++) {
+      Assert.assertEquals(positions[bin], histogram.getPosition(bin), 0d);
+      Assert.assertEquals(counts[bin], histogram.getCount(bin));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testLargeSketchCompactions() throws Exception {
+    // The size the field definitions use for the most global bins
+    int maxBins = 2 * Utils.MAX_GLOBAL_BINS;
+    StreamingHistogram histogram = new StreamingHistogram(maxBins);
+    Random random = new Random(42);
+    int valueCount = 6 * maxBins;
+    for (int i = 0; i < valueCount; i++) {
+      histogram.add(random.nextDouble());
+    }
+
+    Assert.assertFalse(histogram.isExact());
+    Assert.assertEquals(maxBins, histogram.getBinCount());
+    Assert.assertEquals((long) valueCount, histogram.getTotalCount());
+    for (int bin = 1; bin < maxBins; bin++) {
+      Assert.assertTrue(histogram.getPosition(bin - 1) < histogram.getPosition(bin));
+    }
+
+    double[] quartiles = histogram.uniform(4);
+    Assert.assertEquals(3, quartiles.length);
+    Assert.assertEquals(0.25, quartiles[0], 0.01);
+    Assert.assertEquals(0.5, quartiles[1], 0.01);
+    Assert.assertEquals(0.75, quartiles[2], 0.01);
+  }
+}
@@ -0,0 +1,180 @@
+package hadooptree;
+
+import hadooptree.tree.Field;
+import hadooptree.tree.Node;
+import hadooptree.tree.Split;
+import hadooptree.tree.Tree;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for how TreeBuilder grows the tree from split job results
+ */
+public class TreeBuilderTest {
+
+  private File workDirectory;
+  private Configuration conf;
+  private Tree tree;
+  private HashMap<Integer, Node> nodeMap;
+  private Node root;
+
+  @Before
+  public void setUp() throws Exception {
+    workDirectory = File.createTempFile("treebuilder", "");
+    workDirectory.delete();
+    workDirectory.mkdirs();
+
+    conf = new Configuration();
+    conf.setInt(Utils.SPECULATIVE_SPLITS_KEY, 1);
+
+    ArrayList<Field> fields = new ArrayList<Field>();
+    Field classField = new Field(0);
+    classField.addCategoricalValue("a");
+    classField.addCategoricalValue("b");
+    fields.add(classField);
+    for (int fieldId = 1; fieldId <= 2; fieldId++) {
+      Field field = new Field(fieldId);
+      field.addNumericValue(0);
+      field.addNumericValue(10);
+      fields.add(field);
+    }
+
+    root = new Node(0, null, getCategoryCounts(20000, 20000));
+    nodeMap = new HashMap<Integer, Node>();
+    nodeMap.put(root.getId(), root);
+    tree = new Tree(root, fields, 0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtil.fullyDelete(workDirectory);
+  }
+
+  @Test
+  public void testCandidateWithinTolerance() throws Exception {
+    setCandidateSplits(new Split(2, 5.0));
+
+    // The candidate gains 0.1887, within 5% of the best split's 0.19
+    BuildResults results = readNewSplits(
+            "0,0,1,3.0,0.19,a@15000;b@5000,a@5000;b@15000",
+            "0,1,1,2.0,0.3,a@14000;b@1000,a@1000;b@4000",
+            "0,2,1,7.0,0.3,a@4000;b@1000,a@1000;b@14000");
+
+    Assert.assertEquals(new Split(2, 5.0), root.getSplit());
+    Assert.assertEquals(20000L, root.getTrueChild().getTotalCount());
+    Assert.assertEquals(new Split(1, 2.0), root.getTrueChild().getSplit());
+    Assert.assertEquals(new Split(1, 7.0), root.getFalseChild().getSplit());
+    Assert.assertEquals(7, nodeMap.size());
+    Assert.assertTrue(results.isGrewTree());
+    Assert.assertEquals(10000L, results.getLeafInstanceCount());
+  }
+
+  @Test
+  public void testCandidateOutsideTolerance() throws Exception {
+    setCandidateSplits(new Split(2, 5.0));
+
+    readNewSplits(
+            "0,0,1,3.0,0.25,a@16000;b@4000,a@4000;b@16000",
+            "0,1,1,2.0,0.3,a@14000;b@1000,a@1000;b@4000",
+            "0,2,1,7.0,0.3,a@4000;b@1000,a@1000;b@14000");
+
+    Assert.assertEquals(new Split(1, 3.0), root.getSplit());
+    Assert.assertEquals(16000L, root.getTrueChild().getObjectiveCategoryCountMap().get("a").longValue());
+    Assert.assertNull(root.getTrueChild().getSplit());
+    Assert.assertEquals(3, nodeMap.size());
+  }
+
+  @Test
+  public void testIncompleteCandidatesSkipped() throws Exception {
+    // The first candidate's false child is missing, and the second's false
+    // child is under the split floor
+    setCandidateSplits(new Split(2, 5.0), new Split(2, 9.9));
+
+    readNewSplits(
+            "0,0,1,3.0,0.001,a@15000;b@5000,a@5000;b@15000",
+            "0,1,1,2.0,0.3,a@14000;b@1000,a@1000;b@4000",
+            "0,3,1,2.0,0.3,a@19950;b@5000,a@0;b@15000",
+            "0,4,1,2.0,0.3,a@50;b@0,a@0;b@0");
+
+    Assert.assertEquals(new Split(1, 3.0), root.getSplit());
+    Assert.assertEquals(3, nodeMap.size());
+  }
+
+  @Test
+  public void testSpeculativeChildren() throws Exception {
+    setCandidateSplits(new Split(2, 5.0));
+
+    // The true child is under the subtree floor, and the false child has no
+    // split worth making
+    BuildResults results = readNewSplits(
+            "0,0,1,3.0,0.3,a@15000;b@5000,a@5000;b@15000",
+            "0,1,1,2.0,0.3,a@6000;b@0,a@4000;b@0",
+            "0,2,1,-1.7976931348623157E308,-1.7976931348623157E308,a@10000;b@20000,a@0;b@0");
+
+    Node trueChild = root.getTrueChild();
+    Node falseChild = root.getFalseChild();
+    Assert.assertEquals(new Split(2, 5.0), root.getSplit());
+
+    // Left to the subtree job, like the children of any other split
+    Assert.assertNull(trueChild.getSplit());
+    Assert.assertFalse(trueChild.isLeaf());
+    Assert.assertEquals(10000L, trueChild.getTotalCount());
+
+    Assert.assertNull(falseChild.getSplit());
+    Assert.assertTrue(falseChild.isLeaf());
+    Assert.assertEquals(40000L, results.getLeafInstanceCount());
+  }
+
+  @Test
+  public void testDerivedChildGetsNoCandidates() throws Exception {
+    readNewSplits(
+            "0,0,1,3.0,0.2,a@12000;b@4000,a@8000;b@16000",
+            "0,0,2,5.0,0.1,a@10000;b@10000,a@10000;b@10000");
+
+    Node trueChild = root.getTrueChild();
+    Node falseChild = root.getFalseChild();
+    Assert.assertFalse(trueChild.isDerived());
+    Assert.assertEquals(1, trueChild.getCandidateSplits().size());
+    Assert.assertEquals(new Split(2, 5.0), trueChild.getCandidateSplits().get(0));
+    Assert.assertTrue(falseChild.isDerived());
+    Assert.assertNull(falseChild.getCandidateSplits());
+  }
+
+  private void setCandidateSplits(Split... splits) {
+    ArrayList<Split> candidateSplits = new ArrayList<Split>();
+    for (Split split : splits) {
+      candidateSplits.add(split);
+    }
+    root.setCandidateSplits(candidateSplits);
+  }
+
+  private BuildResults readNewSplits(String... lines) throws Exception {
+    File splitsDirectory = new File(workDirectory, "splits");
+    splitsDirectory.mkdirs();
+    FileWriter writer = new FileWriter(new File(splitsDirectory, "part-r-00000"));
+    for (String line : lines) {
+      writer.write(line);
+      writer.write("\n");
+    }
+    writer.close();
+
+    return TreeBuilder.readNewSplits(tree, nodeMap, conf, new Path(splitsDirectory.getPath()));
+  }
+
+  private static TreeMap<String, Long> getCategoryCounts(long a, long b) {
+    TreeMap<String, Long> counts = new TreeMap<String, Long>();
+    counts.put("a", a);
+    counts.put("b", b);
+    return counts;
+  }
+}
@@ -0,0 +1,108 @@
+package hadooptree;
+
+import hadooptree.tree.Field;
+import hadooptree.tree.Node;
+import hadooptree.tree.Split;
+import hadooptree.tree.Tree;
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for TreeCache
+ */
+public class TreeCacheTest {
+
+  private File workDirectory;
+  private Configuration conf;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws Exception {
+    workDirectory = File.createTempFile("treecache", "");
+    workDirectory.delete();
+    workDirectory.mkdirs();
+
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtil.fullyDelete(workDirectory);
+  }
+
+  @Test
+  public void testNewTreeReplacesCached() throws Exception {
+    Path firstPath = new Path(new File(workDirectory, "snapshot-1.bin").getPath());
+    Utils.writeTree(createTree(1.5, 3), fs, firstPath);
+    setTreePath(firstPath);
+
+    Tree firstTree = TreeCache.get(conf);
+    Assert.assertEquals(new Split(1, 1.5), firstTree.getRoot().getSplit());
+    Assert.assertEquals(3L, firstTree.getCompiledTree().getTotalCount(1));
+    Assert.assertSame(firstTree, TreeCache.get(conf));
+
+    // The driver ships every version of the tree to a new path
+    Path secondPath = new Path(new File(workDirectory, "snapshot-2.bin").getPath());
+    Utils.writeTree(createTree(2.5, 7), fs, secondPath);
+    setTreePath(secondPath);
+
+    Tree secondTree = TreeCache.get(conf);
+    Assert.assertNotSame(firstTree, secondTree);
+    Assert.assertEquals(new Split(1, 2.5), secondTree.getRoot().getSplit());
+    Assert.assertEquals(7L, secondTree.getCompiledTree().getTotalCount(1));
+    Assert.assertSame(secondTree, TreeCache.get(conf));
+  }
+
+  @Test
+  public void testXmlTree() throws Exception {
+    // Not a binary tree, so it can't be decoded from the memory map
+    Path xmlPath = new Path(new File(workDirectory, "tree.xml").getPath());
+    Utils.writeTreeXml(createTree(4.5, 5), fs, xmlPath);
+    setTreePath(xmlPath);
+
+    Tree tree = TreeCache.get(conf);
+    Assert.assertEquals(new Split(1, 4.5), tree.getRoot().getSplit());
+    Assert.assertEquals(5L, tree.getNode(1).getTotalCount());
+    Assert.assertSame(tree, TreeCache.get(conf));
+  }
+
+  private void setTreePath(Path path) {
+    DistributedCache.setCacheFiles(new URI[]{fs.makeQualified(path).toUri()}, conf);
+  }
+
+  private static Tree createTree(double threshold, long trueCount) throws Exception {
+    ArrayList<Field> fields = new ArrayList<Field>();
+    Field classField = new Field(0);
+    classField.addCategoricalValue("a");
+    classField.addCategoricalValue("b");
+    fields.add(classField);
+    Field numericField = new Field(1);
+    numericField.addNumericValue(0);
+    numericField.addNumericValue(10);
+    fields.add(numericField);
+
+    Node root = new Node(0, null, getCounts(trueCount, 10));
+    root.addSplit(new Split(1, threshold), new Node(1, root, getCounts(trueCount, 0)),
+            new Node(2, root, getCounts(0, 10)));
+    return new Tree(root, fields, 0);
+  }
+
+  private static TreeMap<String, Long> getCounts(long a, long b) {
+    TreeMap<String, Long> counts = new TreeMap<String, Long>();
+    counts.put("a", a);
+    counts.put("b", b);
+    return counts;
+  }
+}
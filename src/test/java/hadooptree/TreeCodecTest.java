@@ -0,0 +1,105 @@
+package hadooptree;
+
+import hadooptree.tree.Field;
+import hadooptree.tree.Node;
+import hadooptree.tree.Split;
+import hadooptree.tree.Tree;
+import hadooptree.tree.TreeCodec;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for TreeCodec
+ */
+public class TreeCodecTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Tree tree = createTree();
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    TreeCodec.write(tree, out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    Tree reloaded = TreeCodec.read(in);
+
+    Assert.assertEquals(tree, reloaded);
+    Assert.assertEquals(tree.toString(), reloaded.toString());
+    Assert.assertTrue(reloaded.getNode(2).isFieldExhausted(1));
+    Assert.assertTrue(reloaded.getNode(2).isFieldExhausted(2));
+    Assert.assertFalse(reloaded.getNode(1).isFieldExhausted(1));
+    Assert.assertEquals(2, reloaded.getNode(2).getCandidateSplits().size());
+    Assert.assertEquals(-1, reloaded.getNode(2).getCandidateSplits().get(1).getCategoryId());
+    Assert.assertTrue(TreeCodec.isBinaryTree(out.getData()));
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Tree tree = createTree();
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    TreeCodec.writeSnapshot(tree, out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    Tree snapshot = TreeCodec.read(in);
+
+    // The structure is complete, but only the frontier and the node its
+    // derived buckets come from keep their counts
+    Assert.assertEquals(tree.getRoot(), snapshot.getRoot());
+    Assert.assertEquals(4L, snapshot.getNode(2).getTotalCount());
+    Assert.assertEquals(4L, snapshot.getNode(0).getTotalCount());
+    Assert.assertNull(snapshot.getNode(1).getObjectiveCategoryCountMap());
+    Assert.assertEquals(3, snapshot.getObjectiveField().getCategoryCount());
+    Assert.assertEquals(1, snapshot.getObjectiveField().getCategoryId("grape"));
+    Assert.assertTrue(snapshot.getNode(2).isFieldExhausted(2));
+  }
+
+  private static Tree createTree() throws Exception {
+    Field classField = new Field(0);
+    for (String category : new String[]{"peach", "apple", "grape", "apple"}) {
+      classField.addCategoricalValue(category);
+    }
+
+    Field distinctField = new Field(1);
+    for (double value : new double[]{3, 1, 2, -0.0}) {
+      distinctField.addNumericValue(value);
+    }
+
+    Field binnedField = new Field(2);
+    binnedField.setDistinctValueLimit(2);
+    for (double value : new double[]{0.5, 1.5, 2.5, 3.5}) {
+      binnedField.addNumericValue(value);
+    }
+    binnedField.setBinCeilings(new double[]{1, 2, 3.5});
+
+    ArrayList<Field> fields = new ArrayList<Field>();
+    fields.add(classField);
+    fields.add(distinctField);
+    fields.add(binnedField);
+
+    TreeMap<String, Long> counts = new TreeMap<String, Long>();
+    counts.put("apple", 2L);
+    counts.put("grape", 1L);
+    counts.put("peach", 1L);
+
+    Node root = new Node(0, null, counts);
+    Node trueChild = new Node(1, root, counts);
+    Node falseChild = new Node(2, root, counts);
+    root.addExhaustedField(2);
+    root.addSplit(new Split(1, 1.5), trueChild, falseChild);
+
+    trueChild.setIsLeaf(true);
+    falseChild.setIsDerived(true);
+    falseChild.addExhaustedField(1);
+    ArrayList<Split> candidateSplits = new ArrayList<Split>();
+    candidateSplits.add(new Split(2, 2.0));
+    candidateSplits.add(new Split(0, "unseen"));
+    falseChild.setCandidateSplits(candidateSplits);
+
+    return new Tree(root, fields, 0);
+  }
+}
@@ -0,0 +1,95 @@
+package hadooptree;
+
+import hadooptree.io.HistogramWritable;
+import hadooptree.io.InstanceWritable;
+import hadooptree.io.NodeFieldWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for the shuffle Writables
+ */
+public class WritablesTest {
+
+  @Test
+  public void testNodeFieldRawComparator() throws Exception {
+    NodeFieldWritable[] keys = new NodeFieldWritable[]{
+      new NodeFieldWritable(1, 2, -5.5, 3.0),
+      new NodeFieldWritable(1, 2, -5.5, 4.0),
+      new NodeFieldWritable(1, 3, -7.0, 4.0),
+      new NodeFieldWritable(1, 2, 0, -5.5, 3.0),
+      new NodeFieldWritable(1, 1, 3, -5.5, 3.0),
+      new NodeFieldWritable(2, 0, 0, 0),
+      new NodeFieldWritable(12, 0, 0, 0)
+    };
+
+    WritableComparator comparator = WritableComparator.get(NodeFieldWritable.class);
+    for (NodeFieldWritable a : keys) {
+      for (NodeFieldWritable b : keys) {
+        byte[] aBytes = serialize(a);
+        byte[] bBytes = serialize(b);
+        int rawResult = comparator.compare(aBytes, 0, aBytes.length, bBytes, 0, bBytes.length);
+        Assert.assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(rawResult));
+      }
+    }
+  }
+
+  @Test
+  public void testHistogramRoundTrip() throws Exception {
+    HistogramWritable histogram = new HistogramWritable();
+    histogram.clear(3);
+    for (int bin = 0; bin < 40; bin++) {
+      histogram.add(bin * 7, new long[]{bin, 0, 1000000L * bin});
+    }
+
+    HistogramWritable reloaded = new HistogramWritable();
+    DataInputBuffer in = new DataInputBuffer();
+    byte[] bytes = serialize(histogram);
+    in.reset(bytes, bytes.length);
+    reloaded.readFields(in);
+
+    Assert.assertEquals(histogram.toString(), reloaded.toString());
+  }
+
+  @Test
+  public void testInstanceRoundTrip() throws Exception {
+    InstanceWritable instance = new InstanceWritable();
+    instance.setNodeId(70000);
+    instance.setFieldCount(6);
+    instance.setNumber(0, -2.5);
+    instance.setCategoryId(1, 0);
+    instance.setCategoryId(2, 300);
+    instance.setNumber(3, 1e10);
+    instance.setBin(4, 65535);
+    instance.dropField(5);
+
+    InstanceWritable reloaded = new InstanceWritable();
+    DataInputBuffer in = new DataInputBuffer();
+    byte[] bytes = serialize(instance);
+    in.reset(bytes, bytes.length);
+    reloaded.readFields(in);
+
+    Assert.assertEquals(instance.toString(), reloaded.toString());
+    Assert.assertTrue(reloaded.isCategorical(1));
+    Assert.assertEquals(300, reloaded.getCategoryId(2));
+    Assert.assertEquals(-2.5, reloaded.getNumber(0), 0.0);
+    Assert.assertTrue(reloaded.isBinned(4));
+    Assert.assertFalse(reloaded.isCategorical(4));
+    Assert.assertEquals(65535, reloaded.getBin(4));
+    Assert.assertTrue(reloaded.isDropped(5));
+    Assert.assertFalse(reloaded.isBinned(5));
+    Assert.assertEquals(70000, reloaded.getNodeId());
+  }
+
+  private static byte[] serialize(Writable writable) throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    writable.write(out);
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, out.getLength());
+    return bytes;
+  }
+}